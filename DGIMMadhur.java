@@ -1,13 +1,186 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 public class DGIMMadhur {
     public static record Bucket(int size, long rightTs) {
         @Override public String toString() { return "{size=" + size + ", rightTs=" + rightTs + "}"; }
     }
+    /**
+     * Totals across every DGIM variant in the process: bits ingested (for SumDGIM, one per value
+     * added, whatever its set bits), bucket merges and expirations, queries, and the time spent in
+     * bulk ingestion. Writers count into a plain {@link Tally} of their own and hand it over once
+     * per word, or every {@link Tally#PUBLISH_INTERVAL} single bits, so the totals trail a per-bit
+     * writer by up to that many bits until it calls its {@code publishMetrics()}.
+     */
+    public static final class Metrics {
+        public static final LongAdder BITS_INGESTED = new LongAdder(), BUCKET_MERGES = new LongAdder(),
+            BUCKETS_EXPIRED = new LongAdder(), QUERIES = new LongAdder();
+        public static final Phase BULK_INGEST = new Phase();
+        private Metrics() {}
+        public static Map<String, Long> snapshot() {
+            Map<String, Long> out = new LinkedHashMap<>();
+            out.put("bits.ingested", BITS_INGESTED.sum());
+            out.put("buckets.merged", BUCKET_MERGES.sum());
+            out.put("buckets.expired", BUCKETS_EXPIRED.sum());
+            out.put("queries", QUERIES.sum());
+            BULK_INGEST.report("bulkIngest", out);
+            return out;
+        }
+        public static void reset() {
+            BITS_INGESTED.reset(); BUCKET_MERGES.reset(); BUCKETS_EXPIRED.reset(); QUERIES.reset();
+            BULK_INGEST.reset();
+        }
+    }
+    /** Timer for a bulk-ingest call: how many ran, their total nanoseconds, and the latest one's. */
+    public static final class Phase {
+        private final LongAdder calls = new LongAdder(), nanos = new LongAdder();
+        private volatile long lastNanos;
+        public long start() { return System.nanoTime(); }
+        public void stop(long startNanos) {
+            long d = System.nanoTime() - startNanos;
+            calls.increment(); nanos.add(d); lastNanos = d;
+        }
+        public long calls() { return calls.sum(); }
+        public long totalNanos() { return nanos.sum(); }
+        public long lastNanos() { return lastNanos; }
+        void report(String name, Map<String, Long> out) {
+            out.put(name + ".calls", calls()); out.put(name + ".nanos", totalNanos()); out.put(name + ".lastNanos", lastNanos);
+        }
+        void reset() { calls.reset(); nanos.reset(); lastNanos = 0; }
+    }
+    /** One writer's unpublished counts; only ever touched by the thread that holds the writer's state. */
+    static final class Tally {
+        static final int PUBLISH_INTERVAL = 1 << 12;
+        long bits, merges, expired;
+        private long publishedBits, publishedMerges, publishedExpired;
+        void bit() { if ((++bits & (PUBLISH_INTERVAL - 1)) == 0) publish(); }
+        void publish() {
+            if (bits != publishedBits) Metrics.BITS_INGESTED.add(bits - publishedBits);
+            if (merges != publishedMerges) Metrics.BUCKET_MERGES.add(merges - publishedMerges);
+            if (expired != publishedExpired) Metrics.BUCKETS_EXPIRED.add(expired - publishedExpired);
+            publishedBits = bits; publishedMerges = merges; publishedExpired = expired;
+        }
+    }
+    /**
+     * Estimated number of 1s: every whole bucket plus half of the oldest, possibly partial, one. The
+     * true count lies in [lower, upper] because only the oldest bucket's right end is known to be inside.
+     */
+    public static record Count(long estimate, long lower, long upper) {
+        public static final Count ZERO = new Count(0, 0, 0);
+        public double relativeErrorBound() {
+            return lower == 0 ? 0.0 : (double) Math.max(upper - estimate, estimate - lower) / lower;
+        }
+    }
+    /**
+     * Bucket store organized by size level: level j keeps the right timestamps of its size-2^j
+     * buckets in a fixed ring (oldest first). Every bucket of level j is newer than every bucket of
+     * level j + 1, so the oldest bucket overall is the head of the top non-empty level. The level
+     * count doubles if a merge runs past it; arrival-count windows preallocate their exact bound and
+     * never grow, while event-time windows start small since their event count is unbounded.
+     */
+    public static final class BucketLevels {
+        private static final int MAX_LEVELS = 63;
+        private final int maxPerLevel, cap;
+        private int levels;
+        private long[] ts;
+        private int[] head, count;
+        private int top = -1;
+        final Tally tally;
+        public BucketLevels(int levels, int maxPerLevel) { this(levels, maxPerLevel, new Tally()); }
+        BucketLevels(int levels, int maxPerLevel, Tally tally) {
+            this.levels = levels; this.maxPerLevel = maxPerLevel; this.cap = maxPerLevel + 1;
+            this.tally = tally;
+            this.ts = new long[levels * cap];
+            this.head = new int[levels]; this.count = new int[levels];
+        }
+        private BucketLevels(BucketLevels other) {
+            this.levels = other.levels; this.maxPerLevel = other.maxPerLevel; this.cap = other.cap;
+            this.ts = other.ts.clone(); this.head = other.head.clone(); this.count = other.count.clone();
+            this.top = other.top;
+            this.tally = new Tally();
+        }
+        public BucketLevels copy() { return new BucketLevels(this); }
+        /** Adds a size-1 bucket and cascades merges of the two oldest buckets upward while a level overflows. */
+        public void add(long rightTs) {
+            push(0, rightTs);
+            int j = 0;
+            for (; count[j] > maxPerLevel; j++) {
+                pollOldest(j);
+                push(j + 1, pollOldest(j));
+            }
+            if (j > 0) tally.merges += j;
+        }
+        public void expireBefore(long earliestTs) {
+            while (top >= 0 && ts[top * cap + head[top]] < earliestTs) {
+                pollOldest(top);
+                tally.expired++;
+                while (top >= 0 && count[top] == 0) top--;
+            }
+        }
+        private void push(int level, long rightTs) {
+            if (level == levels) grow();
+            int slot = head[level] + count[level];
+            if (slot >= cap) slot -= cap;
+            ts[level * cap + slot] = rightTs;
+            count[level]++;
+            if (level > top) top = level;
+        }
+        private void grow() {
+            if (levels == MAX_LEVELS) throw new IllegalStateException("bucket size exceeds 2^" + (MAX_LEVELS - 1));
+            levels = Math.min(MAX_LEVELS, levels * 2);
+            ts = Arrays.copyOf(ts, levels * cap);
+            head = Arrays.copyOf(head, levels); count = Arrays.copyOf(count, levels);
+        }
+        private long pollOldest(int level) {
+            long t = ts[level * cap + head[level]];
+            if (++head[level] == cap) head[level] = 0;
+            count[level]--;
+            return t;
+        }
+        /** Walks levels newest first and stops at the first bucket older than {@code sinceTs}: O(levels * maxPerLevel). */
+        public Count count(long sinceTs) {
+            long sum = 0, oldestSize = 0;
+            for (int j = 0; j <= top; j++) {
+                for (int k = count[j] - 1; k >= 0; k--) {
+                    int slot = head[j] + k;
+                    if (slot >= cap) slot -= cap;
+                    if (ts[j * cap + slot] < sinceTs) return countOf(sum, oldestSize);
+                    oldestSize = 1L << j;
+                    sum += oldestSize;
+                }
+            }
+            return countOf(sum, oldestSize);
+        }
+        private static Count countOf(long sum, long oldestSize) {
+            return sum == 0 ? Count.ZERO : new Count(sum - oldestSize / 2, sum - oldestSize + 1, sum);
+        }
+        public int size() {
+            int n = 0;
+            for (int j = 0; j <= top; j++) n += count[j];
+            return n;
+        }
+        /** Copies the buckets out newest first. */
+        public Deque<Bucket> toDeque() {
+            Deque<Bucket> out = new ArrayDeque<>();
+            for (int j = 0; j <= top; j++) {
+                for (int k = count[j] - 1; k >= 0; k--) {
+                    int slot = head[j] + k;
+                    if (slot >= cap) slot -= cap;
+                    out.addLast(new Bucket(1 << j, ts[j * cap + slot]));
+                }
+            }
+            return out;
+        }
+    }
     public static class DGIM {
         private final int windowSizeN, maxBucketsPerSize;
         private long currentTs = 0;
-        private final Deque<Bucket> buckets = new ArrayDeque<>();
+        private final BucketLevels levels;
         private final boolean keepExactBuffer;
         private final int[] exactBuffer;
         private int exactBufferCount = 0;
@@ -15,9 +188,19 @@ public class DGIMMadhur {
             if (windowSizeN <= 0) throw new IllegalArgumentException("windowSizeN > 0");
             if (maxBucketsPerSize < 2) throw new IllegalArgumentException("maxBucketsPerSize >= 2");
             this.windowSizeN = windowSizeN; this.maxBucketsPerSize = maxBucketsPerSize;
+            // A live bucket never holds more than N ones, so sizes 2^0 .. 2^floor(log2 N) suffice.
+            this.levels = new BucketLevels(32 - Integer.numberOfLeadingZeros(windowSizeN), maxBucketsPerSize);
             this.keepExactBuffer = keepExactBuffer;
             this.exactBuffer = keepExactBuffer ? new int[windowSizeN] : null;
         }
+        /** Frozen copy of the bucket state, without the exact debug buffer. */
+        private DGIM(DGIM other) {
+            this.windowSizeN = other.windowSizeN; this.maxBucketsPerSize = other.maxBucketsPerSize;
+            this.currentTs = other.currentTs;
+            this.levels = other.levels.copy();
+            this.keepExactBuffer = false;
+            this.exactBuffer = null;
+        }
         public void addBit(int bit) {
             if (bit != 0 && bit != 1) throw new IllegalArgumentException("bit must be 0 or 1");
             currentTs++;
@@ -26,62 +209,82 @@ public class DGIMMadhur {
                 exactBuffer[idx] = bit;
                 if (exactBufferCount < windowSizeN) exactBufferCount++;
             }
-            expireOldBuckets();
-            if (bit == 1) {
-                buckets.addFirst(new Bucket(1, currentTs));
-                enforceMergeRules();
-            }
-        }
-        private void expireOldBuckets() {
-            long earliestTs = Math.max(1, currentTs - windowSizeN + 1);
-            while (!buckets.isEmpty() && buckets.peekLast().rightTs() < earliestTs) buckets.pollLast();
-        }
-        private void enforceMergeRules() {
-            boolean merged;
-            do {
-                merged = false;
-                Map<Integer, Integer> countBySize = new HashMap<>();
-                for (Bucket b : buckets) countBySize.put(b.size(), countBySize.getOrDefault(b.size(), 0) + 1);
-                List<Integer> sizes = new ArrayList<>(countBySize.keySet());
-                Collections.sort(sizes);
-                for (int size : sizes) {
-                    if (countBySize.get(size) > maxBucketsPerSize) {
-                        mergeTwoOldestOfSize(size);
-                        merged = true; break;
-                    }
-                }
-            } while (merged);
-        }
-        private void mergeTwoOldestOfSize(int size) {
-            List<Bucket> list = new ArrayList<>(buckets);
-            Bucket oldest = null, secondOldest = null;
-            for (int i = list.size() - 1; i >= 0; i--) {
-                Bucket b = list.get(i);
-                if (b.size() == size) {
-                    if (oldest == null) oldest = b;
-                    else { secondOldest = b; break; }
+            levels.expireBefore(currentTs - windowSizeN + 1);
+            if (bit == 1) levels.add(currentTs);
+            levels.tally.bit();
+        }
+        /**
+         * Appends the low {@code nbits} bits of {@code word}, least significant bit first. Expiry runs
+         * once against the word's final timestamp (anything it drops would be outside the window by
+         * the end of the word anyway) and only set bits are visited, via numberOfTrailingZeros.
+         * Because old buckets are dropped before the word's ones are merged in, the resulting bucket
+         * structure can differ from feeding the same bits through {@link #addBit}; counts keep the
+         * same bounds, but callers that show the buckets step by step should ingest per bit.
+         */
+        public void addBits(long word, int nbits) {
+            if (nbits < 0 || nbits > 64) throw new IllegalArgumentException("nbits must be in [0, 64]");
+            if (nbits < 64) word &= (1L << nbits) - 1;
+            long base = currentTs;
+            currentTs += nbits;
+            if (keepExactBuffer) {
+                for (int i = 0; i < nbits; i++) {
+                    exactBuffer[(int) ((base + i) % windowSizeN)] = (int) (word >>> i) & 1;
+                    if (exactBufferCount < windowSizeN) exactBufferCount++;
                 }
             }
-            if (oldest == null || secondOldest == null) return;
-            removeFirstIdentity(secondOldest); removeFirstIdentity(oldest);
-            long newRight = Math.max(oldest.rightTs(), secondOldest.rightTs());
-            insertBucketByRightTs(new Bucket(size * 2, newRight));
+            levels.expireBefore(currentTs - windowSizeN + 1);
+            if (nbits > windowSizeN) word &= -1L << (nbits - windowSizeN);
+            while (word != 0) {
+                levels.add(base + Long.numberOfTrailingZeros(word) + 1);
+                word &= word - 1;
+            }
+            levels.tally.bits += nbits;
+            levels.tally.publish();
+        }
+        /** Appends the first {@code nbits} bits packed in {@code words}, in {@link BitSet#toLongArray()} order. */
+        public void addBits(long[] words, int nbits) {
+            if (nbits < 0 || nbits > (long) words.length * 64) throw new IllegalArgumentException("nbits out of range");
+            long t0 = Metrics.BULK_INGEST.start();
+            int full = nbits >>> 6;
+            for (int i = 0; i < full; i++) addBits(words[i], 64);
+            if ((nbits & 63) != 0) addBits(words[full], nbits & 63);
+            Metrics.BULK_INGEST.stop(t0);
         }
-        private void removeFirstIdentity(Bucket target) {
-            Iterator<Bucket> it = buckets.iterator();
-            while (it.hasNext()) if (it.next() == target) { it.remove(); return; }
+        public void addBits(BitSet bits, int nbits) {
+            long[] words = bits.toLongArray();
+            if (words.length * 64L < nbits) words = Arrays.copyOf(words, (nbits + 63) >>> 6);
+            addBits(words, nbits);
         }
-        private void insertBucketByRightTs(Bucket b) {
-            if (buckets.isEmpty()) { buckets.add(b); return; }
-            List<Bucket> temp = new ArrayList<>(buckets);
-            int pos = 0;
-            while (pos < temp.size() && temp.get(pos).rightTs() > b.rightTs()) pos++;
-            temp.add(pos, b);
-            buckets.clear(); buckets.addAll(temp);
+        /** Appends {@code nbits} bits from the buffer's position, least significant bit of each byte first. */
+        public void addBits(ByteBuffer buf, int nbits) {
+            if (nbits < 0 || nbits > (long) buf.remaining() * 8) throw new IllegalArgumentException("nbits out of range");
+            long t0 = Metrics.BULK_INGEST.start();
+            ByteBuffer le = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int left = nbits;
+            for (; left >= 64; left -= 64) addBits(le.getLong(), 64);
+            if (left > 0) {
+                long tail = 0;
+                for (int i = 0; i < (left + 7) >>> 3; i++) tail |= (le.get() & 0xFFL) << (8 * i);
+                addBits(tail, left);
+            }
+            buf.position(le.position());
+            Metrics.BULK_INGEST.stop(t0);
+        }
+        public void addBits(byte[] bytes, int nbits) { addBits(ByteBuffer.wrap(bytes), nbits); }
+        /** Estimated number of 1s among the last {@code k} bits, {@code 0 <= k <= N}. */
+        public Count count(int k) {
+            if (k < 0 || k > windowSizeN) throw new IllegalArgumentException("k must be in [0, " + windowSizeN + "]");
+            Metrics.QUERIES.increment();
+            return k == 0 ? Count.ZERO : levels.count(currentTs - k + 1);
         }
+        public Count count() { return count(windowSizeN); }
         public int effectiveWindow() { return (int) Math.min(currentTs, windowSizeN); }
         public long currentTs() { return currentTs; }
-        public Deque<Bucket> buckets() { return buckets; }
+        /** Publishes counts still held back by per-bit ingestion; call from the writing thread. */
+        public void publishMetrics() { levels.tally.publish(); }
+        /** Snapshot of the buckets, newest first. */
+        public Deque<Bucket> buckets() { return levels.toDeque(); }
+        public int bucketCount() { return levels.size(); }
         public int[] snapshotExactWindow() {
             if (!keepExactBuffer) return null;
             int len = effectiveWindow(); int[] out = new int[len];
@@ -92,21 +295,366 @@ public class DGIMMadhur {
             return out;
         }
     }
-    private static List<Integer> parseBits(String s) {
-        List<Integer> bits = new ArrayList<>();
-        if (s == null) return bits;
-        s = s.trim(); if (s.isEmpty()) return bits;
-        if (s.matches("[01]+")) {
-            for (char c : s.toCharArray()) bits.add(c == '1' ? 1 : 0);
-        } else {
-            s = s.replace(",", " ");
-            for (String tok : s.trim().split("\\s+")) {
-                if (tok.isEmpty()) continue;
-                if (!tok.matches("[01]")) throw new IllegalArgumentException("Invalid bit:" + tok);
-                bits.add(Integer.parseInt(tok));
+    /**
+     * DGIM state for many keyed streams packed into shared off-heap segments, with no object per
+     * stream or per bucket. Each stream owns a fixed slot of bit fields: its 64-bit arrival clock,
+     * its top level, and per level a bucket count followed by at most maxBucketsPerSize right
+     * timestamps (oldest first). Timestamps are stored modulo 2^tsBits with 2^tsBits > N, which
+     * is unambiguous because live buckets are always less than N + 1 arrivals old. Segments are
+     * direct buffers of at most 1 GB, allocated on first touch.
+     */
+    public static final class MultiStreamDGIM {
+        private static final int SEGMENT_BYTES = 1 << 30, TOP_BITS = 6, LEVELS_OFFSET = 64 + TOP_BITS;
+        private final int streamCount, windowSizeN, maxPerLevel, levels, tsBits, countBits, levelBits, slotWords, segmentShift;
+        private final Tally tally = new Tally();
+        private final long tsMask;
+        private final LongBuffer[] segments;
+        public MultiStreamDGIM(int streamCount, int windowSizeN, int maxBucketsPerSize) {
+            if (streamCount <= 0) throw new IllegalArgumentException("streamCount > 0");
+            if (windowSizeN <= 0) throw new IllegalArgumentException("windowSizeN > 0");
+            if (maxBucketsPerSize < 2) throw new IllegalArgumentException("maxBucketsPerSize >= 2");
+            this.streamCount = streamCount; this.windowSizeN = windowSizeN; this.maxPerLevel = maxBucketsPerSize;
+            this.levels = 32 - Integer.numberOfLeadingZeros(windowSizeN);
+            this.tsBits = 32 - Integer.numberOfLeadingZeros(windowSizeN);
+            this.tsMask = (1L << tsBits) - 1;
+            this.countBits = 32 - Integer.numberOfLeadingZeros(maxBucketsPerSize);
+            this.levelBits = countBits + maxBucketsPerSize * tsBits;
+            this.slotWords = (LEVELS_OFFSET + levels * levelBits + 63) >>> 6;
+            // Power-of-two streams per segment so a stream id splits into segment and slot with a shift.
+            this.segmentShift = 31 - Integer.numberOfLeadingZeros(Math.max(1, SEGMENT_BYTES / (slotWords * 8)));
+            this.segments = new LongBuffer[(int) (((long) streamCount + (1L << segmentShift) - 1) >>> segmentShift)];
+        }
+        public int streamCount() { return streamCount; }
+        public void allocateAll() {
+            for (int s = 0; s < segments.length; s++) segment(s << segmentShift, true);
+        }
+        public int bytesPerStream() { return slotWords * 8; }
+        public long allocatedBytes() {
+            long n = 0;
+            for (LongBuffer seg : segments) if (seg != null) n += (long) seg.capacity() * 8;
+            return n;
+        }
+        public void addBit(int streamId, int bit) { addBit(streamId, bit, tally); }
+        /** Publishes counts still held back by per-bit ingestion; call from the writing thread. */
+        public void publishMetrics() { tally.publish(); }
+        /** Counts into the caller's tally, so writers on different lock stripes never share one. */
+        void addBit(int streamId, int bit, Tally t) {
+            if (bit != 0 && bit != 1) throw new IllegalArgumentException("bit must be 0 or 1");
+            LongBuffer seg = segment(streamId, true);
+            int base = slotBase(streamId);
+            long cur = seg.get(base) + 1;
+            seg.put(base, cur);
+            expire(seg, base, cur, cur - windowSizeN + 1, t);
+            if (bit == 1) insert(seg, base, cur, t);
+            t.bit();
+        }
+        public long currentTs(int streamId) {
+            LongBuffer seg = segment(streamId, false);
+            return seg == null ? 0 : seg.get(slotBase(streamId));
+        }
+        public Count count(int streamId) { return count(streamId, windowSizeN); }
+        public Count count(int streamId, int k) {
+            if (k < 0 || k > windowSizeN) throw new IllegalArgumentException("k must be in [0, " + windowSizeN + "]");
+            Metrics.QUERIES.increment();
+            LongBuffer seg = segment(streamId, false);
+            if (seg == null || k == 0) return Count.ZERO;
+            int base = slotBase(streamId);
+            long cur = seg.get(base), since = cur - k + 1, sum = 0, oldestSize = 0;
+            // Clamped because an optimistic reader can see a field that spans two words half
+            // written; the result is discarded on validate, but must not index past the slot.
+            int top = Math.min((int) get(seg, base, 64, TOP_BITS), levels) - 1;
+            for (int j = 0; j <= top; j++) {
+                int off = LEVELS_OFFSET + j * levelBits;
+                for (int i = Math.min((int) get(seg, base, off, countBits), maxPerLevel) - 1; i >= 0; i--) {
+                    if (timestamp(seg, base, off, i, cur) < since) return countOf(sum, oldestSize);
+                    oldestSize = 1L << j;
+                    sum += oldestSize;
+                }
+            }
+            return countOf(sum, oldestSize);
+        }
+        private static Count countOf(long sum, long oldestSize) {
+            return sum == 0 ? Count.ZERO : new Count(sum - oldestSize / 2, sum - oldestSize + 1, sum);
+        }
+        private void expire(LongBuffer seg, int base, long cur, long earliestTs, Tally t) {
+            int top = (int) get(seg, base, 64, TOP_BITS) - 1, topBefore = top;
+            while (top >= 0) {
+                int off = LEVELS_OFFSET + top * levelBits;
+                if (timestamp(seg, base, off, 0, cur) >= earliestTs) break;
+                t.expired++;
+                int n = pollOldest(seg, base, off, 1);
+                while (n == 0 && --top >= 0) n = (int) get(seg, base, LEVELS_OFFSET + top * levelBits, countBits);
+            }
+            if (top != topBefore) put(seg, base, 64, TOP_BITS, top + 1);
+        }
+        /**
+         * Same cascade as {@link BucketLevels#add}, ordered so no level ever holds more than
+         * maxPerLevel entries: a full level first hands its two oldest buckets up as one (carrying
+         * the newer timestamp), then takes the incoming bucket.
+         */
+        private void insert(LongBuffer seg, int base, long ts, Tally t) {
+            long carry = ts;
+            for (int j = 0; ; j++) {
+                if (j == levels) throw new IllegalStateException("bucket size exceeds window");
+                int off = LEVELS_OFFSET + j * levelBits;
+                int n = (int) get(seg, base, off, countBits);
+                if (n < maxPerLevel) {
+                    put(seg, base, off + countBits + n * tsBits, tsBits, carry & tsMask);
+                    put(seg, base, off, countBits, n + 1);
+                    if (j >= get(seg, base, 64, TOP_BITS)) put(seg, base, 64, TOP_BITS, j + 1);
+                    return;
+                }
+                t.merges++;
+                long newerOfOldestTwo = get(seg, base, off + countBits + tsBits, tsBits);
+                n = pollOldest(seg, base, off, 2);
+                put(seg, base, off + countBits + n * tsBits, tsBits, carry & tsMask);
+                put(seg, base, off, countBits, n + 1);
+                carry = newerOfOldestTwo;
+            }
+        }
+        /** Drops the {@code k} oldest entries of a level by shifting the rest down; returns the new count. */
+        private int pollOldest(LongBuffer seg, int base, int off, int k) {
+            int n = (int) get(seg, base, off, countBits) - k;
+            int first = off + countBits;
+            for (int i = 0; i < n; i++) put(seg, base, first + i * tsBits, tsBits, get(seg, base, first + (i + k) * tsBits, tsBits));
+            put(seg, base, off, countBits, n);
+            return n;
+        }
+        private long timestamp(LongBuffer seg, int base, int levelOff, int i, long cur) {
+            long stored = get(seg, base, levelOff + countBits + i * tsBits, tsBits);
+            return cur - ((cur - stored) & tsMask);
+        }
+        private LongBuffer segment(int streamId, boolean create) {
+            if (streamId < 0 || streamId >= streamCount) throw new IndexOutOfBoundsException("streamId " + streamId);
+            int s = streamId >>> segmentShift;
+            LongBuffer seg = segments[s];
+            if (seg == null && create) {
+                int streams = Math.min(1 << segmentShift, streamCount - (s << segmentShift));
+                seg = segments[s] = ByteBuffer.allocateDirect(streams * slotWords * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+            }
+            return seg;
+        }
+        private int slotBase(int streamId) { return (streamId & ((1 << segmentShift) - 1)) * slotWords; }
+        private static long get(LongBuffer seg, int base, int bitOff, int width) {
+            int w = base + (bitOff >>> 6), sh = bitOff & 63;
+            long v = seg.get(w) >>> sh;
+            if (sh + width > 64) v |= seg.get(w + 1) << (64 - sh);
+            return v & ((1L << width) - 1);
+        }
+        private static void put(LongBuffer seg, int base, int bitOff, int width, long value) {
+            int w = base + (bitOff >>> 6), sh = bitOff & 63;
+            long mask = (1L << width) - 1;
+            seg.put(w, seg.get(w) & ~(mask << sh) | (value & mask) << sh);
+            if (sh + width > 64) {
+                int hi = 64 - sh;
+                seg.put(w + 1, seg.get(w + 1) & ~(mask >>> hi) | (value & mask) >>> hi);
             }
         }
-        return bits;
+    }
+    /**
+     * DGIM over caller-supplied event times: the window is the last {@code windowMillis} of event
+     * time rather than the last N arrivals, so idle gaps and bursts are both handled. Timestamps
+     * must be non-decreasing; {@link #advance} moves the clock forward without an event.
+     */
+    public static final class TimeDGIM {
+        private final long windowMillis;
+        private final BucketLevels levels;
+        private long now = Long.MIN_VALUE;
+        public TimeDGIM(long windowMillis, int maxBucketsPerSize) {
+            if (windowMillis <= 0) throw new IllegalArgumentException("windowMillis > 0");
+            if (maxBucketsPerSize < 2) throw new IllegalArgumentException("maxBucketsPerSize >= 2");
+            this.windowMillis = windowMillis;
+            this.levels = new BucketLevels(8, maxBucketsPerSize);
+        }
+        public void addBit(long timeMillis, int bit) {
+            if (bit != 0 && bit != 1) throw new IllegalArgumentException("bit must be 0 or 1");
+            advance(timeMillis);
+            if (bit == 1) levels.add(timeMillis);
+            levels.tally.bit();
+        }
+        public void advance(long timeMillis) {
+            if (timeMillis < now) throw new IllegalArgumentException("timestamps must be non-decreasing");
+            now = timeMillis;
+            levels.expireBefore(timeMillis - windowMillis + 1);
+        }
+        /** Publishes counts still held back by per-event ingestion; call from the writing thread. */
+        public void publishMetrics() { levels.tally.publish(); }
+        public long now() { return now; }
+        /** Estimated number of 1s with event time in the last {@code spanMillis}, {@code 0 <= spanMillis <= window}. */
+        public Count count(long spanMillis) {
+            if (spanMillis < 0 || spanMillis > windowMillis) throw new IllegalArgumentException("spanMillis must be in [0, " + windowMillis + "]");
+            Metrics.QUERIES.increment();
+            return spanMillis == 0 ? Count.ZERO : levels.count(now - spanMillis + 1);
+        }
+        public Count count() { return count(windowMillis); }
+    }
+    /**
+     * Approximate sum of non-negative integers below 2^valueBits over an event-time window. Each
+     * value is decomposed into bit-planes and plane i is a DGIM counting events with bit i set,
+     * so the sum is the 2^i-weighted total of the plane counts (and so are its bounds).
+     */
+    public static final class SumDGIM {
+        private final long windowMillis;
+        private final int valueBits;
+        private final BucketLevels[] planes;
+        private final Tally tally = new Tally();
+        private long now = Long.MIN_VALUE;
+        public SumDGIM(long windowMillis, int valueBits, int maxBucketsPerSize) {
+            if (windowMillis <= 0) throw new IllegalArgumentException("windowMillis > 0");
+            if (valueBits < 1 || valueBits > 62) throw new IllegalArgumentException("valueBits must be in [1, 62]");
+            if (maxBucketsPerSize < 2) throw new IllegalArgumentException("maxBucketsPerSize >= 2");
+            this.windowMillis = windowMillis; this.valueBits = valueBits;
+            this.planes = new BucketLevels[valueBits];
+            for (int i = 0; i < valueBits; i++) planes[i] = new BucketLevels(4, maxBucketsPerSize, tally);
+        }
+        public void add(long timeMillis, long value) {
+            if (value < 0 || value >>> valueBits != 0) throw new IllegalArgumentException("value must be in [0, 2^" + valueBits + ")");
+            advance(timeMillis);
+            for (long v = value; v != 0; v &= v - 1) planes[Long.numberOfTrailingZeros(v)].add(timeMillis);
+            tally.bit();
+        }
+        public void advance(long timeMillis) {
+            if (timeMillis < now) throw new IllegalArgumentException("timestamps must be non-decreasing");
+            now = timeMillis;
+            for (BucketLevels plane : planes) plane.expireBefore(timeMillis - windowMillis + 1);
+        }
+        /** Publishes counts still held back by per-value ingestion; call from the writing thread. */
+        public void publishMetrics() { tally.publish(); }
+        public long now() { return now; }
+        public Count sum(long spanMillis) {
+            if (spanMillis < 0 || spanMillis > windowMillis) throw new IllegalArgumentException("spanMillis must be in [0, " + windowMillis + "]");
+            Metrics.QUERIES.increment();
+            if (spanMillis == 0) return Count.ZERO;
+            long estimate = 0, lower = 0, upper = 0;
+            for (int i = 0; i < valueBits; i++) {
+                Count c = planes[i].count(now - spanMillis + 1);
+                estimate += c.estimate() << i; lower += c.lower() << i; upper += c.upper() << i;
+            }
+            return new Count(estimate, lower, upper);
+        }
+        public Count sum() { return sum(windowMillis); }
+    }
+    /**
+     * DGIM for one writer thread and any number of reader threads. Writes take the write side of
+     * a StampedLock, one word at a time for bulk input, and bump the version. Queries run against
+     * the live arrays under an optimistic read stamp and are retried if a write overlapped. They
+     * only fall back to the read lock after repeated conflicts, so readers normally take no lock.
+     */
+    public static final class ConcurrentDGIM {
+        private static final int OPTIMISTIC_ATTEMPTS = 4;
+        private final DGIM dgim;
+        private final StampedLock lock = new StampedLock();
+        private long version;
+        public ConcurrentDGIM(int windowSizeN, int maxBucketsPerSize) {
+            this.dgim = new DGIM(windowSizeN, maxBucketsPerSize, false);
+        }
+        public void addBit(int bit) {
+            long stamp = lock.writeLock();
+            try { dgim.addBit(bit); version++; } finally { lock.unlockWrite(stamp); }
+        }
+        public void addBits(long word, int nbits) {
+            long stamp = lock.writeLock();
+            try { dgim.addBits(word, nbits); version++; } finally { lock.unlockWrite(stamp); }
+        }
+        /** Publishes the writer's held-back counts under the write lock, so any thread may call it. */
+        public void publishMetrics() {
+            long stamp = lock.writeLock();
+            try { dgim.publishMetrics(); } finally { lock.unlockWrite(stamp); }
+        }
+        public void addBits(long[] words, int nbits) {
+            if (nbits < 0 || nbits > (long) words.length * 64) throw new IllegalArgumentException("nbits out of range");
+            int full = nbits >>> 6;
+            for (int i = 0; i < full; i++) addBits(words[i], 64);
+            if ((nbits & 63) != 0) addBits(words[full], nbits & 63);
+        }
+        public Count count(int k) { return read(() -> dgim.count(k)); }
+        public Count count() { return read(dgim::count); }
+        /** A consistent, immutable copy of the buckets tagged with the number of writes it reflects. */
+        public Snapshot snapshot() { return read(() -> new Snapshot(version, new DGIM(dgim))); }
+        private <T> T read(Supplier<T> query) {
+            for (int i = 0; i < OPTIMISTIC_ATTEMPTS; i++) {
+                long stamp = lock.tryOptimisticRead();
+                if (stamp == 0) continue;
+                T result = query.get();
+                if (lock.validate(stamp)) return result;
+            }
+            long stamp = lock.readLock();
+            try { return query.get(); } finally { lock.unlockRead(stamp); }
+        }
+    }
+    public static final class Snapshot {
+        private final long version;
+        private final DGIM state;
+        private Snapshot(long version, DGIM state) { this.version = version; this.state = state; }
+        public long version() { return version; }
+        public long currentTs() { return state.currentTs(); }
+        public Count count(int k) { return state.count(k); }
+        public Count count() { return state.count(); }
+        public Deque<Bucket> buckets() { return state.buckets(); }
+    }
+    /**
+     * MultiStreamDGIM with striped locking: writers for streams on different stripes proceed in
+     * parallel, and readers validate an optimistic stamp of the stream's stripe. Segments are
+     * allocated up front so no slot memory is published lazily across threads.
+     */
+    public static final class ConcurrentMultiStreamDGIM {
+        private static final int OPTIMISTIC_ATTEMPTS = 4;
+        private final MultiStreamDGIM streams;
+        private final StampedLock[] stripes;
+        private final Tally[] tallies;
+        public ConcurrentMultiStreamDGIM(int streamCount, int windowSizeN, int maxBucketsPerSize, int stripeCount) {
+            if (stripeCount <= 0) throw new IllegalArgumentException("stripeCount > 0");
+            this.streams = new MultiStreamDGIM(streamCount, windowSizeN, maxBucketsPerSize);
+            this.streams.allocateAll();
+            int n = 1;
+            while (n < stripeCount) n <<= 1;
+            this.stripes = new StampedLock[n];
+            this.tallies = new Tally[n];
+            for (int i = 0; i < stripes.length; i++) { stripes[i] = new StampedLock(); tallies[i] = new Tally(); }
+        }
+        public void addBit(int streamId, int bit) {
+            int stripe = streamId & (stripes.length - 1);
+            long stamp = stripes[stripe].writeLock();
+            try { streams.addBit(streamId, bit, tallies[stripe]); } finally { stripes[stripe].unlockWrite(stamp); }
+        }
+        /** Publishes every stripe's held-back counts, each under its stripe's write lock. */
+        public void publishMetrics() {
+            for (int i = 0; i < stripes.length; i++) {
+                long stamp = stripes[i].writeLock();
+                try { tallies[i].publish(); } finally { stripes[i].unlockWrite(stamp); }
+            }
+        }
+        public Count count(int streamId) { return count(streamId, streams.windowSizeN); }
+        public Count count(int streamId, int k) {
+            StampedLock lock = stripes[streamId & (stripes.length - 1)];
+            for (int i = 0; i < OPTIMISTIC_ATTEMPTS; i++) {
+                long stamp = lock.tryOptimisticRead();
+                if (stamp == 0) continue;
+                Count c = streams.count(streamId, k);
+                if (lock.validate(stamp)) return c;
+            }
+            long stamp = lock.readLock();
+            try { return streams.count(streamId, k); } finally { lock.unlockRead(stamp); }
+        }
+    }
+    private record PackedBits(long[] words, int length) {}
+    private static PackedBits parseBits(String s) {
+        long[] words = new long[1];
+        int len = 0;
+        if (s == null) return new PackedBits(words, 0);
+        s = s.trim(); if (s.isEmpty()) return new PackedBits(words, 0);
+        String[] toks = s.matches("[01]+") ? s.split("") : s.replace(",", " ").trim().split("\\s+");
+        for (String tok : toks) {
+            if (tok.isEmpty()) continue;
+            if (!tok.matches("[01]")) throw new IllegalArgumentException("Invalid bit:" + tok);
+            if ((len >>> 6) == words.length) words = Arrays.copyOf(words, words.length * 2);
+            if (tok.charAt(0) == '1') words[len >>> 6] |= 1L << (len & 63);
+            len++;
+        }
+        return new PackedBits(words, len);
+    }
+    private static void addEachBit(DGIM dgim, PackedBits bits) {
+        for (int i = 0; i < bits.length(); i++) dgim.addBit((int) (bits.words()[i >>> 6] >>> (i & 63)) & 1);
     }
     public static void printBucketsChronologically(DGIM dgim) {
         System.out.println("### Stream Segments View (Oldest -> Newest) ###");
@@ -130,17 +678,20 @@ public class DGIMMadhur {
         Collections.reverse(segments);
         System.out.println(String.join(" | ", segments));
     }
+    // Usage: DGIMMadhur [--metrics]   (window size and bit streams are read from stdin)
     public static void main(final String[] args) {
+        boolean metrics = Arrays.asList(args).contains("--metrics");
         try (Scanner sc = new Scanner(System.in)) {
             System.out.println("Enter the window size (N):");
             int N = Integer.parseInt(sc.nextLine().trim());
             System.out.println("Enter the initial input stream (will be read from left to right):");
-            List<Integer> initBits = parseBits(sc.nextLine());
+            PackedBits initBits = parseBits(sc.nextLine());
             System.out.println("Enter the new input stream (will be read from LEFT to RIGHT):");
-            List<Integer> newBits = parseBits(sc.nextLine());
+            PackedBits newBits = parseBits(sc.nextLine());
             DGIM dgim = new DGIM(N, 2, true);
-            for (int b : initBits) dgim.addBit(b);
-            for (int b : newBits) dgim.addBit(b);
+            // Per bit, so the buckets shown match the step-by-step DGIM walkthrough
+            addEachBit(dgim, initBits);
+            addEachBit(dgim, newBits);
             System.out.println("\n========== DGIM Final State ==========");
             int[] finalWindow = dgim.snapshotExactWindow();
             if (finalWindow != null) {
@@ -148,6 +699,14 @@ public class DGIMMadhur {
                 System.out.println(Arrays.toString(finalWindow)); System.out.println();
             }
             printBucketsChronologically(dgim);
+            Count c = dgim.count();
+            System.out.printf("%nEstimated number of 1s in the last %d bits: %d (true count in [%d, %d], error <= %.1f%%)%n",
+                N, c.estimate(), c.lower(), c.upper(), c.relativeErrorBound() * 100);
+            if (finalWindow != null) System.out.println("Exact number of 1s: " + Arrays.stream(finalWindow).sum());
+            if (metrics) {
+                dgim.publishMetrics();
+                System.out.println("\nMetrics: " + Metrics.snapshot());
+            }
         }
     }
 }
\ No newline at end of file
@@ -1,44 +1,445 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 public class FM_Madhur {
-    public static void main(String[] args) {
-        Scanner sc = new Scanner(System.in);
-        System.out.println("Enter the stream of numbers, separated by spaces\n(e.g., 1 3 2 1 2 3 4 3 1 2 3 1 5):");
-        
-        String[] input = sc.nextLine().trim().split("\\s+");
-        sc.close();
+    /**
+     * What the sketches have seen so far: numbers parsed and tokens rejected by {@link NumberReader},
+     * values fed to each estimator, sketch merges, and time spent ingesting and estimating. The
+     * value counters move once per bulk call (addAll, or a parser batch of up to 4096 numbers);
+     * bare {@code HyperLogLog.add} calls are not counted, as a shared counter there costs more
+     * than the register update.
+     */
+    public static final class Metrics {
+        public static final LongAdder VALUES_PARSED = new LongAdder(), TOKENS_REJECTED = new LongAdder(),
+            HLL_VALUES = new LongAdder(), FM_VALUES = new LongAdder(), MERGES = new LongAdder();
+        public static final Phase INGEST = new Phase(), ESTIMATE = new Phase();
+        private Metrics() {}
+        public static Map<String, Long> snapshot() {
+            Map<String, Long> out = new LinkedHashMap<>();
+            out.put("values.parsed", VALUES_PARSED.sum());
+            out.put("tokens.rejected", TOKENS_REJECTED.sum());
+            out.put("hll.values", HLL_VALUES.sum());
+            out.put("fm.values", FM_VALUES.sum());
+            out.put("merges", MERGES.sum());
+            INGEST.report("ingest", out);
+            ESTIMATE.report("estimate", out);
+            return out;
+        }
+        public static void reset() {
+            VALUES_PARSED.reset(); TOKENS_REJECTED.reset(); HLL_VALUES.reset(); FM_VALUES.reset(); MERGES.reset();
+            INGEST.reset(); ESTIMATE.reset();
+        }
+    }
+    /** Timer for one of the ingest or estimate paths: call count, total nanoseconds, latest call. */
+    public static final class Phase {
+        private final LongAdder calls = new LongAdder(), nanos = new LongAdder();
+        private volatile long lastNanos;
+        public long start() { return System.nanoTime(); }
+        public void stop(long startNanos) {
+            long d = System.nanoTime() - startNanos;
+            calls.increment(); nanos.add(d); lastNanos = d;
+        }
+        public long calls() { return calls.sum(); }
+        public long totalNanos() { return nanos.sum(); }
+        public long lastNanos() { return lastNanos; }
+        void report(String name, Map<String, Long> out) {
+            out.put(name + ".calls", calls()); out.put(name + ".nanos", totalNanos()); out.put(name + ".lastNanos", lastNanos);
+        }
+        void reset() { calls.reset(); nanos.reset(); lastNanos = 0; }
+    }
+    public static final class HyperLogLog {
+        public static final int MIN_PRECISION = 4, MAX_PRECISION = 18;
+        private static final int MAGIC = 0x484C4C31, REGISTER_BITS = 6;
+        private static final double TWO_POW_64 = 0x1p64;
+        private final int p;
+        private final byte[] registers;
+        public HyperLogLog(int precision) {
+            if (precision < MIN_PRECISION || precision > MAX_PRECISION)
+                throw new IllegalArgumentException("precision must be in [" + MIN_PRECISION + ", " + MAX_PRECISION + "]");
+            this.p = precision;
+            this.registers = new byte[1 << precision];
+        }
+        public int precision() { return p; }
+        public int registerCount() { return registers.length; }
+        public double standardError() { return 1.04 / Math.sqrt(registers.length); }
+        public void add(long value) { addHash(hash64(value)); }
+        public void addHash(long h) {
+            int idx = (int) (h >>> (64 - p));
+            // Sentinel bit keeps rho bounded by 64 - p + 1 when the remaining bits are all zero.
+            int rho = Long.numberOfLeadingZeros((h << p) | (1L << (p - 1))) + 1;
+            if (rho > registers[idx]) registers[idx] = (byte) rho;
+        }
+        public double estimate() {
+            long t0 = Metrics.ESTIMATE.start();
+            int m = registers.length, zeros = 0;
+            double sum = 0.0;
+            for (byte r : registers) {
+                sum += Math.scalb(1.0, -r);
+                if (r == 0) zeros++;
+            }
+            double raw = alpha(m) * m * (double) m / sum, est = raw;
+            if (raw <= 2.5 * m && zeros > 0) est = m * Math.log((double) m / zeros);
+            else if (raw > TWO_POW_64 / 30.0) est = -TWO_POW_64 * Math.log(1.0 - raw / TWO_POW_64);
+            Metrics.ESTIMATE.stop(t0);
+            return est;
+        }
+        public void addAll(int[] nums, int from, int to) {
+            for (int i = from; i < to; i++) add(nums[i]);
+            Metrics.HLL_VALUES.add(to - from);
+        }
+        /** Union: element-wise max of registers. Both sketches must share the same precision. */
+        public HyperLogLog merge(HyperLogLog other) {
+            if (other.p != p) throw new IllegalArgumentException("precision mismatch: " + p + " vs " + other.p);
+            byte[] o = other.registers;
+            for (int i = 0; i < registers.length; i++) if (o[i] > registers[i]) registers[i] = o[i];
+            Metrics.MERGES.increment();
+            return this;
+        }
+        /** Format: magic, precision, then registers packed at 6 bits each (max rho is 64 - p + 1). */
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeByte(p);
+            byte[] packed = new byte[(registers.length * REGISTER_BITS + 7) / 8];
+            long bitPos = 0;
+            for (byte r : registers) {
+                for (int b = 0; b < REGISTER_BITS; b++, bitPos++)
+                    if ((r >>> b & 1) != 0) packed[(int) (bitPos >>> 3)] |= (byte) (1 << (bitPos & 7));
+            }
+            out.write(packed);
+        }
+        public static HyperLogLog readFrom(DataInput in) throws IOException {
+            if (in.readInt() != MAGIC) throw new IOException("not a HyperLogLog sketch");
+            HyperLogLog hll = new HyperLogLog(in.readUnsignedByte());
+            byte[] packed = new byte[(hll.registers.length * REGISTER_BITS + 7) / 8];
+            in.readFully(packed);
+            long bitPos = 0;
+            for (int i = 0; i < hll.registers.length; i++) {
+                int r = 0;
+                for (int b = 0; b < REGISTER_BITS; b++, bitPos++)
+                    r |= (packed[(int) (bitPos >>> 3)] >>> (bitPos & 7) & 1) << b;
+                hll.registers[i] = (byte) r;
+            }
+            return hll;
+        }
+        public byte[] toBytes() {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bos)) { writeTo(out); }
+            catch (IOException e) { throw new UncheckedIOException(e); }
+            return bos.toByteArray();
+        }
+        public static HyperLogLog fromBytes(byte[] bytes) {
+            try { return readFrom(new DataInputStream(new ByteArrayInputStream(bytes))); }
+            catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+        public static HyperLogLog load(Path file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                return readFrom(in);
+            }
+        }
+        public void save(Path file) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                writeTo(out);
+            }
+        }
+        /** Splits the input across the pool; each leaf fills a partial sketch and partials are merged on join. */
+        public static HyperLogLog ingestParallel(int[] nums, int precision, ForkJoinPool pool) {
+            // A few leaves per worker keeps stealing balanced without paying a register merge per small chunk.
+            int leaf = Math.max(1 << 16, nums.length / (pool.getParallelism() * 4));
+            long t0 = Metrics.INGEST.start();
+            HyperLogLog hll = pool.invoke(new IngestTask(nums, 0, nums.length, precision, leaf));
+            Metrics.INGEST.stop(t0);
+            return hll;
+        }
+        private static final class IngestTask extends RecursiveTask<HyperLogLog> {
+            private final int[] nums;
+            private final int from, to, precision, leaf;
+            IngestTask(int[] nums, int from, int to, int precision, int leaf) {
+                this.nums = nums; this.from = from; this.to = to; this.precision = precision; this.leaf = leaf;
+            }
+            @Override protected HyperLogLog compute() {
+                if (to - from <= leaf) {
+                    HyperLogLog hll = new HyperLogLog(precision);
+                    hll.addAll(nums, from, to);
+                    return hll;
+                }
+                int mid = (from + to) >>> 1;
+                IngestTask right = new IngestTask(nums, mid, to, precision, leaf);
+                right.fork();
+                HyperLogLog left = new IngestTask(nums, from, mid, precision, leaf).compute();
+                return left.merge(right.join());
+            }
+        }
+        private static double alpha(int m) {
+            switch (m) {
+                case 16: return 0.673;
+                case 32: return 0.697;
+                case 64: return 0.709;
+                default: return 0.7213 / (1.0 + 1.079 / m);
+            }
+        }
+        // SplitMix64 finalizer: full avalanche, so consecutive ids land in unrelated registers.
+        public static long hash64(long x) {
+            long z = x + 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * Parses whitespace-separated decimal ints straight from bytes and hands them to the sink in
+     * batches, at the latest when a buffer is consumed. Parser state survives buffer boundaries, so
+     * input can arrive in arbitrary chunks; tokens that are not valid ints are counted in
+     * {@link #rejected()} instead of being dropped silently.
+     */
+    public static final class NumberReader {
+        /** Receives parsed values; {@code values} is reused once the call returns. */
+        @FunctionalInterface
+        public interface BatchSink { void accept(int[] values, int count); }
+        private static final int MAP_CHUNK = 1 << 28, READ_CHUNK = 1 << 16, BATCH = 1 << 12;
+        private final BatchSink sink;
+        private final int[] batch = new int[BATCH];
+        private int batched;
+        private long value, accepted, rejected, publishedAccepted, publishedRejected;
+        private boolean inToken, negative, invalid, hasDigits;
+        public NumberReader(IntConsumer sink) {
+            this((values, count) -> { for (int i = 0; i < count; i++) sink.accept(values[i]); });
+        }
+        public NumberReader(BatchSink sink) { this.sink = sink; }
+        public long accepted() { return accepted; }
+        public long rejected() { return rejected; }
+        public void feed(ByteBuffer buf) {
+            for (int i = buf.position(), end = buf.limit(); i < end; i++) {
+                byte c = buf.get(i);
+                if (c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f') {
+                    if (inToken) endToken();
+                } else if (!inToken) {
+                    inToken = true; value = 0; hasDigits = false; invalid = false;
+                    negative = c == '-';
+                    if (!negative && c != '+') digit(c);
+                } else {
+                    digit(c);
+                }
+            }
+            buf.position(buf.limit());
+            drain();
+        }
+        private void digit(byte c) {
+            if (c < '0' || c > '9') { invalid = true; return; }
+            hasDigits = true;
+            // Saturate once past the int range; the token is rejected in endToken.
+            if (value <= Integer.MAX_VALUE + 1L) value = value * 10 + (c - '0');
+        }
+        private void endToken() {
+            inToken = false;
+            long v = negative ? -value : value;
+            if (invalid || !hasDigits || v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) { rejected++; return; }
+            accepted++;
+            batch[batched++] = (int) v;
+            if (batched == BATCH) drain();
+        }
+        private void drain() {
+            if (batched > 0) sink.accept(batch, batched);
+            batched = 0;
+            Metrics.VALUES_PARSED.add(accepted - publishedAccepted);
+            Metrics.TOKENS_REJECTED.add(rejected - publishedRejected);
+            publishedAccepted = accepted; publishedRejected = rejected;
+        }
+        /** Flushes a trailing token not followed by whitespace. */
+        public void finish() {
+            if (inToken) endToken();
+            drain();
+        }
+        public void readFile(Path file) throws IOException {
+            long t0 = Metrics.INGEST.start();
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = ch.size();
+                for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                    feed(ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos)));
+                }
+            }
+            finish();
+            Metrics.INGEST.stop(t0);
+        }
+        public void readChannel(ReadableByteChannel ch) throws IOException {
+            long t0 = Metrics.INGEST.start();
+            ByteBuffer buf = ByteBuffer.allocateDirect(READ_CHUNK);
+            while (ch.read(buf) >= 0) {
+                buf.flip(); feed(buf); buf.clear();
+            }
+            finish();
+            Metrics.INGEST.stop(t0);
+        }
+    }
+
+    /**
+     * Flajolet-Martin over k bitmaps with PCSA stochastic averaging: one 64-bit hash per element,
+     * whose high half picks a bitmap and whose low half sets the trailing-zero position
+     * ({@code z & -z}) in it, so k bitmaps cost a single hashed scan instead of k. R is the lowest
+     * unset bitmap position; each group averages R and estimates k * 2^mean(R) / phi, and the final
+     * estimate is the median across groups. While bitmaps are still empty the 2^R estimate is
+     * biased upward, so small streams use linear counting over the empty bitmaps instead.
+     */
+    public static final class FlajoletMartin {
+        private static final double PHI = 0.77351, LINEAR_COUNTING_LIMIT = 2.5;
+        private final long[] bitmaps;
+        private final int groupSize;
+        private final long seed;
+        public FlajoletMartin(int hashes, int groupSize, long seed) {
+            if (hashes <= 0 || groupSize <= 0 || hashes % groupSize != 0)
+                throw new IllegalArgumentException("hashes must be a positive multiple of groupSize");
+            this.groupSize = groupSize;
+            this.bitmaps = new long[hashes];
+            this.seed = HyperLogLog.hash64(seed);
+        }
+        public int hashes() { return bitmaps.length; }
+        public int groups() { return bitmaps.length / groupSize; }
+        public void add(int x) {
+            long h = HyperLogLog.hash64(x ^ seed);
+            // Sentinel bit keeps r bounded by 32 when the low half is zero
+            long z = h | 1L << 32;
+            bitmaps[(int) ((h >>> 32) * bitmaps.length >>> 32)] |= z & -z;
+        }
+        public void addAll(int[] nums, int from, int to) {
+            for (int i = from; i < to; i++) add(nums[i]);
+            Metrics.FM_VALUES.add(to - from);
+        }
+        public double estimate() {
+            long t0 = Metrics.ESTIMATE.start();
+            int k = bitmaps.length, empty = 0;
+            double[] means = new double[groups()];
+            for (int g = 0; g < means.length; g++) {
+                double sum = 0;
+                for (int i = g * groupSize; i < (g + 1) * groupSize; i++) {
+                    sum += Long.numberOfTrailingZeros(~bitmaps[i]);
+                    if (bitmaps[i] == 0) empty++;
+                }
+                means[g] = k * Math.pow(2, sum / groupSize) / PHI;
+            }
+            Arrays.sort(means);
+            int mid = means.length / 2;
+            double est = means.length % 2 == 1 ? means[mid] : (means[mid - 1] + means[mid]) / 2;
+            if (est <= LINEAR_COUNTING_LIMIT * k && empty > 0) est = k * Math.log((double) k / empty);
+            Metrics.ESTIMATE.stop(t0);
+            return est;
+        }
+    }
+
+    /** The classroom (ax + b) mod m hashes, all rows evaluated per element in a single pass. */
+    static final class LinearHashFM {
+        private final int[][] params;
+        private final int[] maxR;
+        LinearHashFM(int[][] params) {
+            this.params = params;
+            this.maxR = new int[params.length];
+        }
+        void addAll(int[] nums) {
+            for (int n : nums) {
+                for (int i = 0; i < params.length; i++) {
+                    int rem = (int) (((long) params[i][0] * n + params[i][1]) % params[i][2]);
+                    int r = (rem == 0) ? params[i][2] : Integer.numberOfTrailingZeros(rem);
+                    if (r > maxR[i]) maxR[i] = r;
+                }
+            }
+        }
+        int maxR(int i) { return maxR[i]; }
+    }
 
-        if (input.length == 0) {
+    // Usage: FM_Madhur [precision] [--hashes k] [--group g] [--trace] [--metrics] [--save <file>] [--file <path> | --stdin [--fm]]
+    //        FM_Madhur [--metrics] --merge <file>...
+    public static void main(String[] args) throws IOException {
+        int precision = 14, hashes = 64, groupSize = 8;
+        boolean trace = false, metrics = false, streamFm = false;
+        Path saveTo = null, streamFile = null;
+        boolean streamStdin = false;
+        List<Path> mergeFiles = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--save")) saveTo = Paths.get(args[++i]);
+            else if (args[i].equals("--file")) streamFile = Paths.get(args[++i]);
+            else if (args[i].equals("--stdin")) streamStdin = true;
+            else if (args[i].equals("--hashes")) hashes = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--group")) groupSize = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--trace")) trace = true;
+            else if (args[i].equals("--fm")) streamFm = true;
+            else if (args[i].equals("--metrics")) metrics = true;
+            else if (args[i].equals("--merge")) while (i + 1 < args.length) mergeFiles.add(Paths.get(args[++i]));
+            else precision = Integer.parseInt(args[i]);
+        }
+        if (!mergeFiles.isEmpty()) {
+            HyperLogLog union = HyperLogLog.load(mergeFiles.get(0));
+            for (Path f : mergeFiles.subList(1, mergeFiles.size())) union.merge(HyperLogLog.load(f));
+            System.out.printf("Union of %d sketches: estimated distinct count = %.2f%n", mergeFiles.size(), union.estimate());
+            if (metrics) System.out.println("Metrics: " + Metrics.snapshot());
+            return;
+        }
+        if (streamFile != null || streamStdin) {
+            // Streaming mode: numbers go straight from bytes into the sketch, nothing is materialized.
+            // The FM estimate is opt-in (--fm) so the default path only pays for the HLL update.
+            HyperLogLog hll = new HyperLogLog(precision);
+            FlajoletMartin fm = streamFm ? new FlajoletMartin(hashes, groupSize, 1) : null;
+            NumberReader reader = new NumberReader((values, count) -> {
+                hll.addAll(values, 0, count);
+                if (fm != null) fm.addAll(values, 0, count);
+            });
+            if (streamFile != null) reader.readFile(streamFile);
+            else reader.readChannel(Channels.newChannel(System.in));
+            if (saveTo != null) hll.save(saveTo);
+            System.out.printf("Read %d numbers (%d invalid tokens skipped)%n", reader.accepted(), reader.rejected());
+            System.out.printf("Estimated number of distinct elements = %.2f (std error %.2f%%)%n",
+                hll.estimate(), hll.standardError() * 100);
+            if (fm != null) System.out.printf("Flajolet-Martin (%d bitmaps, median of %d group means) = %.2f%n",
+                fm.hashes(), fm.groups(), fm.estimate());
+            if (metrics) System.out.println("Metrics: " + Metrics.snapshot());
+            return;
+        }
+        System.out.println("Enter the stream of numbers, separated by spaces\n(e.g., 1 3 2 1 2 3 4 3 1 2 3 1 5):");
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII));
+        String line = in.readLine();
+        if (line == null || line.isBlank()) {
             System.out.println("\nNo input provided. Exiting.");
             return;
         }
 
         // Parse numbers
-        int[] nums = new int[input.length];
-        int count = 0;
-        for (String s : input) {
-            try {
-                nums[count++] = Integer.parseInt(s);
-            } catch (Exception e) {}
-        }
-        nums = Arrays.copyOf(nums, count);
+        IntStream.Builder parsed = IntStream.builder();
+        NumberReader reader = new NumberReader(parsed);
+        reader.feed(ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII)));
+        reader.finish();
+        int[] nums = parsed.build().toArray();
+        if (reader.rejected() > 0) System.out.println("Skipped " + reader.rejected() + " invalid token(s).");
 
         if (nums.length == 0) {
             System.out.println("The stream contains no valid numbers.");
             return;
         }
 
-        // Get distinct elements
-        Set<Integer> distinct = new HashSet<>();
-        for (int n : nums) distinct.add(n);
-        int m = distinct.size();
-        
-        System.out.println("\nDistinct elements = " + distinct);
-        System.out.println("Number of distinct elements (m) = " + m);
+        // Estimate distinct elements with a fixed-size register sketch
+        HyperLogLog hll = HyperLogLog.ingestParallel(nums, precision, ForkJoinPool.commonPool());
+        if (saveTo != null) hll.save(saveTo);
+        double estimate = hll.estimate();
+        int m = Math.max(1, (int) Math.round(estimate));
+
+        System.out.printf("\nHyperLogLog (p=%d, %d registers, std error %.2f%%)%n",
+            hll.precision(), hll.registerCount(), hll.standardError() * 100);
+        System.out.printf("Estimated number of distinct elements (m) = %.2f%n", estimate);
 
         // Method 1
         System.out.println("\n\n======== METHOD 1 ========");
-        int R1 = process(nums, 6, 1, m);
+        int R1;
+        if (trace) R1 = process(nums, 6, 1, m);
+        else {
+            LinearHashFM method1 = new LinearHashFM(new int[][]{{6, 1, m}});
+            method1.addAll(nums);
+            R1 = method1.maxR(0);
+        }
         double est1 = Math.pow(2, R1);
         System.out.println("Maximum r(a): " + R1);
         System.out.println("Estimated Distinct Count = " + est1);
@@ -47,11 +448,17 @@ public class FM_Madhur {
         System.out.println("\n\n======== METHOD 2 ========");
         int[][] params = {{6,1,5}, {3,1,32}, {1,6,32}, {1,1,5}};
         double[] estimates = new double[4];
-        
+        LinearHashFM method2 = new LinearHashFM(params);
+        if (!trace) method2.addAll(nums);
+
         for (int i = 0; i < 4; i++) {
-            System.out.printf("\n--- Hash Function %d: H(x) = (%dx + %d) mod %d ---\n", 
-                i+1, params[i][0], params[i][1], params[i][2]);
-            estimates[i] = Math.pow(2, process(nums, params[i][0], params[i][1], params[i][2]));
+            if (trace) {
+                System.out.printf("\n--- Hash Function %d: H(x) = (%dx + %d) mod %d ---\n",
+                    i+1, params[i][0], params[i][1], params[i][2]);
+                estimates[i] = Math.pow(2, process(nums, params[i][0], params[i][1], params[i][2]));
+            } else {
+                estimates[i] = Math.pow(2, method2.maxR(i));
+            }
         }
 
         // Results
@@ -64,6 +471,14 @@ public class FM_Madhur {
         
         System.out.println("Average Estimate: " + avg);
         System.out.println("Median Estimate: " + median);
+
+        // Method 3
+        System.out.println("\n\n======== METHOD 3 ========");
+        FlajoletMartin fm = new FlajoletMartin(hashes, groupSize, 1);
+        fm.addAll(nums, 0, nums.length);
+        System.out.printf("%d bitmaps in %d groups of %d, median of group means: %.2f%n",
+            fm.hashes(), fm.groups(), groupSize, fm.estimate());
+        if (metrics) System.out.println("\nMetrics: " + Metrics.snapshot());
         System.out.println("\n\n--- Code Execution Successful ---");
     }
 
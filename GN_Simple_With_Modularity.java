@@ -1,13 +1,1050 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public class GN_Simple_With_Modularity {
-    
-    // Adjacency list for the (mutable) working graph
-    static Map<String, List<String>> g = new HashMap<>();
-    // Store original edges to calculate modularity correctly
-    static List<String[]> originalEdges = new ArrayList<>();
+    /**
+     * Where a community-detection run spends its work: BFS sources run for betweenness, edges
+     * removed, and wall time for loading, betweenness batches, modularity updates, whole GN steps
+     * and Louvain. Each is recorded once per batch of sources or per removal step, never per vertex
+     * or edge. A step covers scoring, removal and the Q update (not printing), so
+     * {@code step.lastNanos} is the cost of the latest iteration.
+     */
+    static final class Metrics {
+        static final LongAdder SOURCES_PROCESSED = new LongAdder(), EDGES_REMOVED = new LongAdder();
+        static final Phase LOAD = new Phase(), BETWEENNESS = new Phase(), MODULARITY = new Phase(),
+            STEP = new Phase(), LOUVAIN = new Phase();
+        private Metrics() {}
+        static Map<String, Long> snapshot() {
+            Map<String, Long> out = new LinkedHashMap<>();
+            out.put("bfs.sources", SOURCES_PROCESSED.sum());
+            out.put("edges.removed", EDGES_REMOVED.sum());
+            LOAD.report("load", out);
+            BETWEENNESS.report("betweenness", out);
+            MODULARITY.report("modularity", out);
+            STEP.report("step", out);
+            LOUVAIN.report("louvain", out);
+            return out;
+        }
+        static void reset() {
+            SOURCES_PROCESSED.reset(); EDGES_REMOVED.reset();
+            for (Phase p : new Phase[] {LOAD, BETWEENNESS, MODULARITY, STEP, LOUVAIN}) p.reset();
+        }
+    }
+
+    /** Timer for one stage of the pipeline above: how often it ran, total and latest nanoseconds. */
+    static final class Phase {
+        private final LongAdder calls = new LongAdder(), nanos = new LongAdder();
+        private volatile long lastNanos;
+        long start() { return System.nanoTime(); }
+        void stop(long startNanos) {
+            long d = System.nanoTime() - startNanos;
+            calls.increment(); nanos.add(d); lastNanos = d;
+        }
+        long calls() { return calls.sum(); }
+        long totalNanos() { return nanos.sum(); }
+        long lastNanos() { return lastNanos; }
+        void report(String name, Map<String, Long> out) {
+            out.put(name + ".calls", calls()); out.put(name + ".nanos", totalNanos()); out.put(name + ".lastNanos", lastNanos);
+        }
+        void reset() { calls.reset(); nanos.reset(); lastNanos = 0; }
+    }
+
+
+    /**
+     * Undirected graph on interned int vertex ids, stored as CSR: the neighbours of v are
+     * adj[offsets[v] .. offsets[v + 1]) and adjEdge holds the matching edge ids. Adjacency order
+     * follows edge insertion order. Removing an edge only clears its bit in {@code alive}.
+     * Optional edge weights count in modularity for both engines and guide Louvain's moves; only
+     * the betweenness that picks Girvan-Newman's removals ignores them.
+     */
+    static final class Graph {
+        final int n, m;
+        final String[] labels;
+        final int[] eu, ev;
+        final double[] weight;
+        final int[] offsets, adj, adjEdge;
+        final BitSet alive;
+
+        Graph(String[] labels, int[] eu, int[] ev) { this(labels, eu, ev, null); }
+
+        Graph(String[] labels, int[] eu, int[] ev, double[] weight) {
+            this.labels = labels; this.n = labels.length;
+            this.eu = eu; this.ev = ev; this.m = eu.length;
+            this.weight = weight;
+            this.offsets = new int[n + 1];
+            for (int e = 0; e < m; e++) { offsets[eu[e] + 1]++; offsets[ev[e] + 1]++; }
+            for (int v = 0; v < n; v++) offsets[v + 1] += offsets[v];
+            this.adj = new int[2 * m];
+            this.adjEdge = new int[2 * m];
+            int[] cursor = Arrays.copyOf(offsets, n);
+            for (int e = 0; e < m; e++) {
+                int a = cursor[eu[e]]++, b = cursor[ev[e]]++;
+                adj[a] = ev[e]; adjEdge[a] = e;
+                adj[b] = eu[e]; adjEdge[b] = e;
+            }
+            this.alive = new BitSet(m);
+            alive.set(0, m);
+        }
+
+        static Graph of(String[][] edges) {
+            EdgeListBuilder b = new EdgeListBuilder();
+            for (String[] e : edges) b.addEdge(b.intern(e[0]), b.intern(e[1]), 1.0, false);
+            return b.build();
+        }
+
+        double weight(int e) { return weight == null ? 1.0 : weight[e]; }
+
+        int other(int e, int v) { return eu[e] == v ? ev[e] : eu[e]; }
+
+        String edgeName(int e) {
+            String a = labels[eu[e]], b = labels[ev[e]];
+            return a.compareTo(b) < 0 ? a + "-" + b : b + "-" + a;
+        }
+
+        /** Vertex ids ordered by label, for printing. */
+        Integer[] sortedVertices() {
+            Integer[] order = new Integer[n];
+            for (int v = 0; v < n; v++) order[v] = v;
+            Arrays.sort(order, Comparator.comparing(v -> labels[v]));
+            return order;
+        }
+    }
+
+    /**
+     * Accumulates an edge list without per-edge objects. Labels are interned straight from their
+     * bytes through an open-addressing table over one shared byte pool (a String is made once per
+     * vertex, at build time), and edges are deduplicated by packing (min id, max id) into a long
+     * probed in a primitive open-addressing set. Self loops are dropped and a repeated edge keeps
+     * its first weight.
+     */
+    static final class EdgeListBuilder {
+        private byte[] pool = new byte[1 << 12];
+        private int[] labelEnd = new int[64], labelTable = new int[128];
+        private long[] edgeTable = new long[128];
+        private int[] eu = new int[64], ev = new int[64];
+        private double[] w = new double[64];
+        private int poolSize, n, m;
+        private boolean weighted;
+
+        EdgeListBuilder() { Arrays.fill(edgeTable, -1L); }
+
+        int vertexCount() { return n; }
+        int edgeCount() { return m; }
+
+        int intern(String label) {
+            byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+            return intern(bytes, 0, bytes.length);
+        }
+
+        int intern(byte[] buf, int off, int len) {
+            int h = 0x811C9DC5;
+            for (int i = 0; i < len; i++) h = (h ^ buf[off + i]) * 0x01000193;
+            int mask = labelTable.length - 1;
+            for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+                int id = labelTable[slot] - 1;
+                if (id < 0) break;
+                int start = id == 0 ? 0 : labelEnd[id - 1];
+                if (labelEnd[id] - start == len && Arrays.equals(pool, start, start + len, buf, off, off + len)) return id;
+            }
+            if (poolSize + len > pool.length) pool = Arrays.copyOf(pool, Math.max(poolSize + len, pool.length * 2));
+            System.arraycopy(buf, off, pool, poolSize, len);
+            poolSize += len;
+            if (n == labelEnd.length) labelEnd = Arrays.copyOf(labelEnd, n * 2);
+            labelEnd[n] = poolSize;
+            int id = n++;
+            if (2 * n > labelTable.length) rehashLabels();
+            else insertLabel(id, h);
+            return id;
+        }
+
+        void addEdge(int u, int v, double weight, boolean hasWeight) {
+            if (u == v) return;
+            long key = (long) Math.min(u, v) << 32 | Math.max(u, v);
+            int mask = edgeTable.length - 1, slot = edgeSlot(key);
+            for (; edgeTable[slot] != -1L; slot = (slot + 1) & mask) if (edgeTable[slot] == key) return;
+            edgeTable[slot] = key;
+            if (m == eu.length) {
+                eu = Arrays.copyOf(eu, m * 2); ev = Arrays.copyOf(ev, m * 2); w = Arrays.copyOf(w, m * 2);
+            }
+            eu[m] = u; ev[m] = v; w[m++] = weight;
+            weighted |= hasWeight;
+            if (2 * m > edgeTable.length) rehashEdges();
+        }
+
+        Graph build() {
+            String[] labels = new String[n];
+            for (int id = 0; id < n; id++) {
+                int start = id == 0 ? 0 : labelEnd[id - 1];
+                labels[id] = new String(pool, start, labelEnd[id] - start, StandardCharsets.UTF_8);
+            }
+            return new Graph(labels, Arrays.copyOf(eu, m), Arrays.copyOf(ev, m), weighted ? Arrays.copyOf(w, m) : null);
+        }
+
+        private void insertLabel(int id, int h) {
+            int mask = labelTable.length - 1, slot = h & mask;
+            while (labelTable[slot] != 0) slot = (slot + 1) & mask;
+            labelTable[slot] = id + 1;
+        }
+
+        private void rehashLabels() {
+            labelTable = new int[labelTable.length * 2];
+            for (int id = 0; id < n; id++) {
+                int start = id == 0 ? 0 : labelEnd[id - 1], h = 0x811C9DC5;
+                for (int i = start; i < labelEnd[id]; i++) h = (h ^ pool[i]) * 0x01000193;
+                insertLabel(id, h);
+            }
+        }
+
+        /** Fibonacci hashing: the top log2(table size) bits of the product, so every slot is reachable. */
+        private int edgeSlot(long key) {
+            return (int) (key * 0x9E3779B97F4A7C15L >>> (64 - Integer.numberOfTrailingZeros(edgeTable.length)));
+        }
+
+        private void rehashEdges() {
+            edgeTable = new long[edgeTable.length * 2];
+            Arrays.fill(edgeTable, -1L);
+            int mask = edgeTable.length - 1;
+            for (int e = 0; e < m; e++) {
+                long key = (long) Math.min(eu[e], ev[e]) << 32 | Math.max(eu[e], ev[e]);
+                int slot = edgeSlot(key);
+                while (edgeTable[slot] != -1L) slot = (slot + 1) & mask;
+                edgeTable[slot] = key;
+            }
+        }
+    }
+
+    /**
+     * Reads and writes graphs. Text edge lists ("u v [weight]" per line, separated by spaces, tabs
+     * or commas, with '#' and '%' comment lines; further columns such as KONECT timestamps are
+     * ignored) are memory-mapped in chunks and tokenized from bytes into an {@link EdgeListBuilder}.
+     * The binary snapshot stores the label byte pool and the edge arrays in bulk so a cached graph
+     * loads without any parsing. Its magic starts with byte 0x89, which no ASCII or UTF-8 text
+     * file can start with, so sniffing the first four bytes never mistakes an edge list for one.
+     */
+    static final class GraphFiles {
+        private static final int MAGIC = 0x89474E31, MAP_CHUNK = 1 << 28, IO_CHUNK = 1 << 20;
+
+        /**
+         * Loads a binary snapshot if the file starts with its magic number, otherwise parses an edge
+         * list; {@code header} skips the first data line unconditionally instead of detecting it.
+         */
+        static Graph load(Path file, boolean header) throws IOException {
+            long t0 = Metrics.LOAD.start();
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer head = ByteBuffer.allocate(4);
+                while (head.hasRemaining() && ch.read(head) >= 0) { }
+                return !head.hasRemaining() && head.getInt(0) == MAGIC ? readBinary(ch.position(0)) : readEdgeList(ch.position(0), header);
+            } finally {
+                Metrics.LOAD.stop(t0);
+            }
+        }
+
+        private static Graph readEdgeList(FileChannel ch, boolean header) throws IOException {
+            EdgeListParser parser = new EdgeListParser(header);
+            long size = ch.size();
+            for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                parser.feed(ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos)));
+            }
+            parser.finish();
+            return parser.builder.build();
+        }
+
+        static void writeBinary(Graph g, Path file) throws IOException {
+            byte[][] labelBytes = new byte[g.n][];
+            int poolSize = 0;
+            for (int v = 0; v < g.n; v++) poolSize += (labelBytes[v] = g.labels[v].getBytes(StandardCharsets.UTF_8)).length;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(IO_CHUNK);
+                buf.putInt(MAGIC).putInt(g.n).putInt(g.m).putInt(poolSize).put((byte) (g.weight != null ? 1 : 0));
+                int end = 0;
+                for (byte[] b : labelBytes) {
+                    for (int off = 0; off < b.length; ) {
+                        int len = Math.min(b.length - off, buf.remaining());
+                        buf.put(b, off, len);
+                        off += len;
+                        if (!buf.hasRemaining()) flush(ch, buf);
+                    }
+                }
+                for (byte[] b : labelBytes) { room(ch, buf, 4); buf.putInt(end += b.length); }
+                for (int x : g.eu) { room(ch, buf, 4); buf.putInt(x); }
+                for (int x : g.ev) { room(ch, buf, 4); buf.putInt(x); }
+                if (g.weight != null) for (double x : g.weight) { room(ch, buf, 8); buf.putDouble(x); }
+                flush(ch, buf);
+            }
+        }
+
+        private static Graph readBinary(FileChannel ch) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocateDirect(IO_CHUNK);
+            buf.limit(0);
+            fill(ch, buf, 17);
+            if (buf.getInt() != MAGIC) throw new IOException("not a graph snapshot");
+            int n = buf.getInt(), m = buf.getInt(), poolSize = buf.getInt();
+            boolean weighted = buf.get() != 0;
+            byte[] pool = new byte[poolSize];
+            for (int off = 0; off < poolSize; ) {
+                fill(ch, buf, 1);
+                int len = Math.min(poolSize - off, buf.remaining());
+                buf.get(pool, off, len);
+                off += len;
+            }
+            String[] labels = new String[n];
+            for (int v = 0, start = 0; v < n; v++) {
+                fill(ch, buf, 4);
+                int end = buf.getInt();
+                labels[v] = new String(pool, start, end - start, StandardCharsets.UTF_8);
+                start = end;
+            }
+            int[] eu = new int[m], ev = new int[m];
+            for (int e = 0; e < m; e++) { fill(ch, buf, 4); eu[e] = buf.getInt(); }
+            for (int e = 0; e < m; e++) { fill(ch, buf, 4); ev[e] = buf.getInt(); }
+            double[] weight = null;
+            if (weighted) {
+                weight = new double[m];
+                for (int e = 0; e < m; e++) { fill(ch, buf, 8); weight[e] = buf.getDouble(); }
+            }
+            return new Graph(labels, eu, ev, weight);
+        }
+
+        private static void room(FileChannel ch, ByteBuffer buf, int bytes) throws IOException {
+            if (buf.remaining() < bytes) flush(ch, buf);
+        }
+
+        private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) ch.write(buf);
+            buf.clear();
+        }
+
+        /** Ensures at least {@code bytes} are readable, refilling from the channel. */
+        private static void fill(FileChannel ch, ByteBuffer buf, int bytes) throws IOException {
+            if (buf.remaining() >= bytes) return;
+            buf.compact();
+            while (buf.position() < bytes) {
+                if (ch.read(buf) < 0) throw new EOFException("truncated graph snapshot");
+            }
+            buf.flip();
+        }
+    }
+
+    /**
+     * Byte-level tokenizer for edge-list text; state carries over chunk boundaries. The first data
+     * line is held back until it can be told apart from a CSV header: it is a header if its weight
+     * column is not a number, or if it has two non-numeric labels and the next line starts with a
+     * number. Label-only headers over non-numeric labels look like an edge, so callers that know
+     * the file has a header say so. A non-numeric weight on any later line is rejected with its
+     * line number.
+     */
+    static final class EdgeListParser {
+        final EdgeListBuilder builder = new EdgeListBuilder();
+        private byte[] token = new byte[64];
+        private final byte[][] first = new byte[3][];
+        private int tokenLen, field, u, v;
+        private long line = 1, dataLines;
+        private boolean comment, lineStart = true, firstPending;
+        private double weight;
+        private final boolean header;
+
+        EdgeListParser(boolean header) { this.header = header; }
+
+        void feed(ByteBuffer buf) {
+            for (int i = buf.position(), end = buf.limit(); i < end; i++) {
+                byte c = buf.get(i);
+                if (c == '\n') { endLine(); continue; }
+                if (comment) continue;
+                if (lineStart && (c == '#' || c == '%')) { comment = true; continue; }
+                if (c == ' ' || c == '\t' || c == ',' || c == '\r') { endToken(); continue; }
+                lineStart = false;
+                if (tokenLen == token.length) token = Arrays.copyOf(token, tokenLen * 2);
+                token[tokenLen++] = c;
+            }
+            buf.position(buf.limit());
+        }
+
+        /** Ends the input: flushes the last line and a first line still waiting for a header decision. */
+        void finish() {
+            endLine();
+            if (firstPending) addFirstLine();
+        }
+
+        void endLine() {
+            endToken();
+            if (field == 1) throw new IllegalArgumentException("Malformed edge at line " + line);
+            if (field >= 2 && dataLines++ == 0) {
+                if (header) {
+                    // Declared header: dropped as is
+                } else if (field >= 3) {
+                    if (isNumber(first[2], first[2].length)) addFirstLine();
+                } else if (isNumber(first[0], first[0].length) && isNumber(first[1], first[1].length)) {
+                    addFirstLine();
+                } else {
+                    firstPending = true;
+                }
+            } else if (field >= 2) {
+                builder.addEdge(u, v, field >= 3 ? weight : 1.0, field >= 3);
+            }
+            field = 0; comment = false; lineStart = true;
+            line++;
+        }
+
+        private void endToken() {
+            if (tokenLen == 0) return;
+            if (firstPending) {
+                // First token of the second data line settles whether the first was a header
+                firstPending = false;
+                if (!isNumber(token, tokenLen)) addFirstLine();
+            }
+            if (dataLines == 0) {
+                if (field < 3) first[field] = Arrays.copyOf(token, tokenLen);
+            } else if (field == 0) {
+                u = builder.intern(token, 0, tokenLen);
+            } else if (field == 1) {
+                v = builder.intern(token, 0, tokenLen);
+            } else if (field == 2) {
+                weight = parseWeight(token, tokenLen);
+            }
+            field++;
+            tokenLen = 0;
+        }
+
+        private void addFirstLine() {
+            boolean weighted = first[2] != null;
+            builder.addEdge(builder.intern(first[0], 0, first[0].length), builder.intern(first[1], 0, first[1].length),
+                weighted ? parseWeight(first[2], first[2].length) : 1.0, weighted);
+        }
+
+        private boolean isNumber(byte[] b, int len) {
+            try {
+                parseWeight(b, len);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        /** Plain decimals are parsed from the bytes; anything unusual (exponents etc.) falls back to Double.parseDouble. */
+        private double parseWeight(byte[] b, int len) {
+            int i = 0;
+            boolean negative = b[0] == '-';
+            if (negative || b[0] == '+') i++;
+            long mantissa = 0;
+            int scale = 0, digits = 0;
+            boolean dot = false;
+            for (; i < len; i++) {
+                byte c = b[i];
+                if (c == '.' && !dot) { dot = true; continue; }
+                if (c < '0' || c > '9' || ++digits > 18) {
+                    try {
+                        return Double.parseDouble(new String(b, 0, len, StandardCharsets.US_ASCII));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Malformed weight at line " + line);
+                    }
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (dot) scale++;
+            }
+            if (digits == 0) throw new IllegalArgumentException("Malformed weight at line " + line);
+            double x = mantissa / Math.pow(10, scale);
+            return negative ? -x : x;
+        }
+    }
+
+    /**
+     * Brandes edge betweenness over the alive edges with reusable primitive buffers: the BFS
+     * order array doubles as the stack, and predecessors are found on the way back by checking
+     * dist[v] == dist[w] - 1 instead of storing parent lists.
+     *
+     * Sources are split into at most {@link #MAX_LEAVES} contiguous blocks whose boundaries depend
+     * only on the source count. Each block accumulates into its own array on a ForkJoinPool worker
+     * and blocks are summed pairwise in a fixed tree, so results are bit-identical for any
+     * parallelism. Workspaces and partial arrays are pooled across steps.
+     */
+    static final class EdgeBetweenness {
+        static final int MAX_LEAVES = 256;
+        private final Graph g;
+        private final ForkJoinPool pool;
+        private final ConcurrentLinkedQueue<Workspace> workspaces = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<double[]> partials = new ConcurrentLinkedQueue<>();
+
+        EdgeBetweenness(Graph g, int parallelism) {
+            this.g = g;
+            this.pool = new ForkJoinPool(parallelism);
+        }
+
+        int parallelism() { return pool.getParallelism(); }
+
+        double[] compute() {
+            int[] sources = new int[g.n];
+            for (int s = 0; s < g.n; s++) sources[s] = s;
+            double[] bet = sumOverSources(sources, g.n);
+            for (int e = 0; e < g.m; e++) bet[e] /= 2.0;
+            return bet;
+        }
+
+        /** Sum of single-source dependencies over sources[0 .. count); return the array with {@link #release} when done. */
+        double[] sumOverSources(int[] sources, int count) {
+            int leaf = Math.max(1, (count + MAX_LEAVES - 1) / MAX_LEAVES);
+            long t0 = Metrics.BETWEENNESS.start();
+            double[] out = pool.invoke(new SourceTask(sources, 0, count, leaf));
+            Metrics.BETWEENNESS.stop(t0);
+            Metrics.SOURCES_PROCESSED.add(count);
+            return out;
+        }
+
+        void release(double[] partial) {
+            Arrays.fill(partial, 0.0);
+            partials.offer(partial);
+        }
+
+        private double[] borrowPartial() {
+            double[] p = partials.poll();
+            return p != null ? p : new double[g.m];
+        }
+
+        private final class SourceTask extends RecursiveTask<double[]> {
+            private final int[] sources;
+            private final int from, to, leaf;
+            SourceTask(int[] sources, int from, int to, int leaf) {
+                this.sources = sources; this.from = from; this.to = to; this.leaf = leaf;
+            }
+            @Override protected double[] compute() {
+                if (to - from <= leaf) {
+                    double[] out = borrowPartial();
+                    Workspace ws = workspaces.poll();
+                    if (ws == null) ws = new Workspace(g.n);
+                    for (int i = from; i < to; i++) ws.accumulate(g, sources[i], out);
+                    workspaces.offer(ws);
+                    return out;
+                }
+                // Split on whole leaves so the reduction tree is a function of the range alone
+                int mid = from + ((to - from + leaf - 1) / leaf + 1) / 2 * leaf;
+                SourceTask right = new SourceTask(sources, mid, to, leaf);
+                right.fork();
+                double[] left = new SourceTask(sources, from, mid, leaf).compute();
+                double[] r = right.join();
+                for (int e = 0; e < left.length; e++) left[e] += r[e];
+                release(r);
+                return left;
+            }
+        }
+    }
+
+    /**
+     * Connected components of the alive edges with locally maintained ids. After {@link #split},
+     * members[0 .. memberCount) lists the vertices of every affected component, one piece after
+     * another with a fresh id each, and retired[0 .. retiredCount) holds the ids they replaced.
+     */
+    static final class Components {
+        private final Graph g;
+        final int[] comp, members;
+        private final int[] seen;
+        private int[] retired = new int[8];
+        private int nextId, round, memberCount, retiredCount;
+
+        Components(Graph g) {
+            this.g = g;
+            this.comp = new int[g.n];
+            this.members = new int[g.n];
+            this.seen = new int[g.n];
+            round++;
+            for (int v = 0; v < g.n; v++) if (seen[v] != round) label(v);
+        }
+
+        int memberCount() { return memberCount; }
+        int retiredCount() { return retiredCount; }
+        int retired(int i) { return retired[i]; }
+        int idBound() { return nextId; }
+
+        /** Relabels the components that held the given (already removed) edges. */
+        void split(int[] edges, int count) {
+            // Every piece of a component that lost edges touches one of those edges, so relabelling
+            // from the endpoints reaches exactly the affected vertices.
+            round++;
+            memberCount = 0; retiredCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (seen[g.eu[edges[i]]] != round) label(g.eu[edges[i]]);
+                if (seen[g.ev[edges[i]]] != round) label(g.ev[edges[i]]);
+            }
+            Arrays.sort(retired, 0, retiredCount);
+            int distinct = 0;
+            for (int i = 0; i < retiredCount; i++) if (i == 0 || retired[i] != retired[i - 1]) retired[distinct++] = retired[i];
+            retiredCount = distinct;
+        }
+
+        /** BFS over alive edges from {@code root}, appending its vertices to {@code out}; returns the new length. */
+        int collect(int root, int[] out, int found) {
+            int head = found;
+            seen[root] = round; out[found++] = root;
+            while (head < found) {
+                int v = out[head++];
+                for (int i = g.offsets[v]; i < g.offsets[v + 1]; i++) {
+                    int w = g.adj[i];
+                    if (seen[w] == round || !g.alive.get(g.adjEdge[i])) continue;
+                    seen[w] = round; out[found++] = w;
+                }
+            }
+            return found;
+        }
+
+        /** Starts a traversal round for {@link #collect} calls that must not revisit vertices. */
+        void newRound() { round++; }
+        boolean visited(int v) { return seen[v] == round; }
+
+        private void label(int root) {
+            if (retiredCount == retired.length) retired = Arrays.copyOf(retired, retiredCount * 2);
+            retired[retiredCount++] = comp[root];
+            int start = memberCount;
+            memberCount = collect(root, members, memberCount);
+            int id = nextId++;
+            for (int k = start; k < memberCount; k++) comp[members[k]] = id;
+        }
+    }
+
+    /**
+     * Keeps edge betweenness across Girvan-Newman steps. Removing edges only changes shortest
+     * paths inside the components that contained them, so each step reruns Brandes from the
+     * vertices of the pieces {@link Components#split} produced. Scores of every other component
+     * are reused as they are.
+     *
+     * With a pivot budget, a component larger than the budget is scored from that many pivots
+     * drawn uniformly without replacement (seeded, so runs are reproducible) and the
+     * contributions are scaled by |C| / pivots, which keeps the estimate unbiased.
+     */
+    static final class IncrementalBetweenness {
+        static final int EXACT = Integer.MAX_VALUE;
+        private final Graph g;
+        private final EdgeBetweenness engine;
+        private final Components components;
+        private final int pivotBudget;
+        private final Random rng;
+        private final double[] bet, scale;
+        private final int[] pivots, scratch;
+        private int lastSources;
+
+        IncrementalBetweenness(Graph g, EdgeBetweenness engine) { this(g, engine, EXACT, 0L); }
+
+        IncrementalBetweenness(Graph g, EdgeBetweenness engine, int pivotBudget, long seed) {
+            if (pivotBudget <= 0) throw new IllegalArgumentException("pivotBudget > 0");
+            this.g = g;
+            this.engine = engine;
+            this.components = new Components(g);
+            this.pivotBudget = pivotBudget;
+            this.rng = new Random(seed);
+            this.bet = new double[g.m];
+            this.scale = new double[g.n];
+            this.pivots = new int[g.n];
+            this.scratch = new int[g.n];
+            recompute();
+        }
+
+        /**
+         * Pivots per component needed so that, with probability 1 - delta over all m edges (Hoeffding
+         * plus a union bound), each edge's sampled mean dependency is within {@code epsilon * (n - 1)}
+         * of its exact per-source mean, where n is the component size. The single-source dependency
+         * of an edge ranges over [0, n - 1], so that range, not the mean, sets the error scale. The
+         * scaled score is then within epsilon * n * (n - 1) / 2 of the exact betweenness.
+         */
+        static int pivotsForError(double epsilon, double delta, int m) {
+            return (int) Math.ceil(Math.log(2.0 * Math.max(1, m) / delta) / (2.0 * epsilon * epsilon));
+        }
+
+        /** Current scores, indexed by edge id; entries for removed edges are zero. */
+        double[] scores() { return bet; }
+        boolean isExact() { return pivotBudget == EXACT; }
+        Components components() { return components; }
+        int lastRecomputedSources() { return lastSources; }
+
+        void remove(int[] edges, int count) {
+            for (int i = 0; i < count; i++) {
+                g.alive.clear(edges[i]);
+                bet[edges[i]] = 0.0;
+            }
+            Metrics.EDGES_REMOVED.add(count);
+            components.split(edges, count);
+            recompute();
+        }
+
+        /** Exact scores of the given alive edges, from every vertex of the components that hold them. */
+        double[] exactScores(int[] edges, int count) {
+            components.newRound();
+            int found = 0;
+            for (int i = 0; i < count; i++) {
+                if (!components.visited(g.eu[edges[i]])) found = components.collect(g.eu[edges[i]], scratch, found);
+            }
+            double[] partial = engine.sumOverSources(scratch, found);
+            double[] exact = new double[count];
+            for (int i = 0; i < count; i++) exact[i] = partial[edges[i]] / 2.0;
+            engine.release(partial);
+            return exact;
+        }
+
+        /** Rescores the edges of the components most recently (re)labelled by {@link Components}. */
+        private void recompute() {
+            int[] members = components.members, comp = components.comp;
+            int found = components.memberCount(), sources = 0;
+            for (int start = 0; start < found; ) {
+                int end = start + 1;
+                while (end < found && comp[members[end]] == comp[members[start]]) end++;
+                int size = end - start, k = Math.min(size, pivotBudget);
+                System.arraycopy(members, start, pivots, sources, size);
+                // Partial Fisher-Yates: the first k slots become a uniform sample of the component
+                for (int i = 0; i < k && k < size; i++) {
+                    int j = i + rng.nextInt(size - i);
+                    int t = pivots[sources + i]; pivots[sources + i] = pivots[sources + j]; pivots[sources + j] = t;
+                }
+                double sc = (double) size / k;
+                for (int i = start; i < end; i++) scale[members[i]] = sc;
+                sources += k;
+                start = end;
+            }
+            double[] partial = engine.sumOverSources(pivots, sources);
+            for (int k = 0; k < found; k++) {
+                int v = members[k];
+                for (int i = g.offsets[v]; i < g.offsets[v + 1]; i++) {
+                    int e = g.adjEdge[i];
+                    if (g.eu[e] == v && g.alive.get(e)) bet[e] = partial[e] * scale[v] / 2.0;
+                }
+            }
+            engine.release(partial);
+            lastSources = sources;
+        }
+    }
+
+    /**
+     * Newman modularity of the current components against the original graph, held per community
+     * as its internal edge weight L_c and degree sum D_c: Q = sum_c (L_c / m - (D_c / 2m)^2), with
+     * m the total edge weight (the edge count when unweighted), so GN and Louvain peaks score the
+     * same partition identically. The first build costs O(m); afterwards a split retires the old
+     * terms and rescans only the original adjacency of the new pieces.
+     */
+    static final class Modularity {
+        private final Graph g;
+        private final double total;
+        private double[] internal = new double[16], degreeSum = new double[16];
+        private double q;
+
+        Modularity(Graph g, Components c) {
+            this.g = g;
+            double t = 0.0;
+            for (int e = 0; e < g.m; e++) t += g.weight(e);
+            this.total = t;
+            addPieces(c);
+        }
+
+        double q() { return q; }
+
+        double termOf(int id) { return term(internal[id], degreeSum[id], total); }
+
+        private static double term(double internal, double degreeSum, double m) {
+            if (m == 0.0) return 0.0;
+            double d = degreeSum / (2.0 * m);
+            return internal / m - d * d;
+        }
+
+        /**
+         * Q of an arbitrary partition given as community ids in [0, count) per vertex, in O(n + m).
+         * Uses edge weights when the graph has them, in which case m is the total weight.
+         */
+        static double of(Graph g, int[] community, int count) {
+            double[] internal = new double[count], degreeSum = new double[count];
+            double total = 0.0;
+            for (int e = 0; e < g.m; e++) {
+                double w = g.weight(e);
+                int cu = community[g.eu[e]], cv = community[g.ev[e]];
+                degreeSum[cu] += w; degreeSum[cv] += w;
+                if (cu == cv) internal[cu] += w;
+                total += w;
+            }
+            double q = 0.0;
+            for (int c = 0; c < count; c++) q += term(internal[c], degreeSum[c], total);
+            return q;
+        }
+
+        void update(Components c) {
+            long t0 = Metrics.MODULARITY.start();
+            for (int i = 0; i < c.retiredCount(); i++) q -= termOf(c.retired(i));
+            addPieces(c);
+            Metrics.MODULARITY.stop(t0);
+        }
+
+        private void addPieces(Components c) {
+            if (c.idBound() > internal.length) {
+                int cap = Math.max(c.idBound(), internal.length * 2);
+                internal = Arrays.copyOf(internal, cap);
+                degreeSum = Arrays.copyOf(degreeSum, cap);
+            }
+            for (int k = 0; k < c.memberCount(); k++) {
+                int v = c.members[k], id = c.comp[v];
+                for (int i = g.offsets[v]; i < g.offsets[v + 1]; i++) {
+                    double w = g.weight(g.adjEdge[i]);
+                    degreeSum[id] += w;
+                    if (c.comp[g.adj[i]] == id) internal[id] += w;
+                }
+            }
+            // Each internal edge was seen from both endpoints
+            for (int k = 0; k < c.memberCount(); k++) {
+                int id = c.comp[c.members[k]];
+                if (k > 0 && c.comp[c.members[k - 1]] == id) continue;
+                internal[id] /= 2;
+                q += termOf(id);
+            }
+        }
+    }
+
+    /**
+     * The Girvan-Newman run as a dendrogram: removed edge ids in removal order, where each step's
+     * removals end, and Q after each step. Any intermediate graph state is rebuilt on demand
+     * instead of being copied while the run progresses.
+     */
+    static final class RemovalLog {
+        private int[] edges = new int[16], stepEnd = new int[16];
+        private double[] q = new double[16];
+        private int steps, size;
+
+        void record(int[] removed, int count, double stepQ) {
+            if (size + count > edges.length) edges = Arrays.copyOf(edges, Math.max(size + count, edges.length * 2));
+            if (steps == stepEnd.length) {
+                stepEnd = Arrays.copyOf(stepEnd, steps * 2);
+                q = Arrays.copyOf(q, steps * 2);
+            }
+            System.arraycopy(removed, 0, edges, size, count);
+            size += count;
+            stepEnd[steps] = size;
+            q[steps++] = stepQ;
+        }
+
+        int steps() { return steps; }
+        double q(int step) { return q[step]; }
+
+        /** Alive edges after {@code step} (0-based) removal steps have been applied to the full graph. */
+        BitSet aliveAfter(Graph g, int step) {
+            BitSet alive = new BitSet(g.m);
+            alive.set(0, g.m);
+            for (int i = 0; i < stepEnd[step]; i++) alive.clear(edges[i]);
+            return alive;
+        }
+    }
+
+    /**
+     * Multi-level Louvain on a weighted CSR level graph: local moving greedily places each vertex
+     * in the neighbouring community with the best modularity gain until a pass moves nothing,
+     * then each community is collapsed into one vertex (internal weight kept as a self loop) and
+     * the next level repeats on the smaller graph. Vertices are visited in id order, so runs are
+     * deterministic. Stops when a level merges nothing.
+     */
+    static final class Louvain {
+        private static final double MIN_GAIN = 1e-12;
+        private int levels;
+
+        /** Weighted graph of one level; self holds each vertex's self-loop weight, strength its weighted degree. */
+        private static final class Level {
+            final int n;
+            final int[] offsets, adj;
+            final double[] w, self, strength;
+            Level(int n, int[] offsets, int[] adj, double[] w, double[] self) {
+                this.n = n; this.offsets = offsets; this.adj = adj; this.w = w; this.self = self;
+                this.strength = new double[n];
+                for (int v = 0; v < n; v++) {
+                    double k = 2.0 * self[v];
+                    for (int i = offsets[v]; i < offsets[v + 1]; i++) k += w[i];
+                    strength[v] = k;
+                }
+            }
+        }
+
+        int levels() { return levels; }
+
+        /** Community id in [0, count) per vertex of {@code g}, numbered by first vertex; all original edges count, with their weights. */
+        int[] run(Graph g) {
+            long t0 = Metrics.LOUVAIN.start();
+            int[] adj = new int[g.adj.length];
+            double[] w = new double[g.adj.length], self = new double[g.n];
+            int[] offsets = new int[g.n + 1];
+            int k = 0;
+            for (int v = 0; v < g.n; v++) {
+                for (int i = g.offsets[v]; i < g.offsets[v + 1]; i++) {
+                    // A self loop appears twice in its own row; each occurrence is half its weight
+                    if (g.adj[i] == v) self[v] += g.weight(g.adjEdge[i]) / 2.0;
+                    else { adj[k] = g.adj[i]; w[k++] = g.weight(g.adjEdge[i]); }
+                }
+                offsets[v + 1] = k;
+            }
+            Level level = new Level(g.n, offsets, adj, w, self);
+            int[] membership = new int[g.n];
+            for (int v = 0; v < g.n; v++) membership[v] = v;
+            levels = 0;
+            while (true) {
+                int[] comm = new int[level.n];
+                int count = moveNodes(level, comm);
+                if (count == level.n) break;
+                for (int v = 0; v < g.n; v++) membership[v] = comm[membership[v]];
+                level = aggregate(level, comm, count);
+                levels++;
+            }
+            int[] result = renumber(membership);
+            Metrics.LOUVAIN.stop(t0);
+            return result;
+        }
+
+        /** Local moving phase; leaves community ids renumbered to [0, count) and returns count. */
+        private static int moveNodes(Level lv, int[] comm) {
+            double m2 = 0.0;
+            for (int v = 0; v < lv.n; v++) m2 += lv.strength[v];
+            double[] tot = lv.strength.clone(), neighW = new double[lv.n];
+            int[] neigh = new int[lv.n], stamp = new int[lv.n];
+            for (int v = 0; v < lv.n; v++) { comm[v] = v; stamp[v] = -1; }
+            if (m2 == 0.0) return lv.n;
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                for (int v = 0; v < lv.n; v++) {
+                    int own = comm[v], cnt = 0;
+                    double kv = lv.strength[v];
+                    stamp[own] = v; neighW[own] = 0.0; neigh[cnt++] = own;
+                    for (int i = lv.offsets[v]; i < lv.offsets[v + 1]; i++) {
+                        int c = comm[lv.adj[i]];
+                        if (stamp[c] != v) { stamp[c] = v; neighW[c] = 0.0; neigh[cnt++] = c; }
+                        neighW[c] += lv.w[i];
+                    }
+                    tot[own] -= kv;
+                    int best = own;
+                    double bestGain = neighW[own] - tot[own] * kv / m2;
+                    for (int j = 1; j < cnt; j++) {
+                        int c = neigh[j];
+                        double gain = neighW[c] - tot[c] * kv / m2;
+                        if (gain > bestGain + MIN_GAIN) { best = c; bestGain = gain; }
+                    }
+                    tot[best] += kv;
+                    if (best != own) { comm[v] = best; moved = true; }
+                }
+            }
+            int[] ids = renumber(comm);
+            System.arraycopy(ids, 0, comm, 0, lv.n);
+            int count = 0;
+            for (int c : comm) count = Math.max(count, c + 1);
+            return count;
+        }
+
+        /** Collapses each community into one vertex of the next level in O(n + m). */
+        private static Level aggregate(Level lv, int[] comm, int count) {
+            // Members of each community via counting sort
+            int[] start = new int[count + 1], members = new int[lv.n];
+            for (int v = 0; v < lv.n; v++) start[comm[v] + 1]++;
+            for (int c = 0; c < count; c++) start[c + 1] += start[c];
+            int[] cursor = Arrays.copyOf(start, count);
+            for (int v = 0; v < lv.n; v++) members[cursor[comm[v]]++] = v;
+
+            int[] offsets = new int[count + 1], adj = new int[lv.adj.length], stamp = new int[count], neigh = new int[count];
+            double[] w = new double[lv.adj.length], self = new double[count], acc = new double[count];
+            Arrays.fill(stamp, -1);
+            int k = 0;
+            for (int c = 0; c < count; c++) {
+                int cnt = 0;
+                for (int j = start[c]; j < start[c + 1]; j++) {
+                    int u = members[j];
+                    self[c] += lv.self[u];
+                    for (int i = lv.offsets[u]; i < lv.offsets[u + 1]; i++) {
+                        int d = comm[lv.adj[i]];
+                        // Internal edges are seen from both ends
+                        if (d == c) { self[c] += lv.w[i] / 2.0; continue; }
+                        if (stamp[d] != c) { stamp[d] = c; acc[d] = 0.0; neigh[cnt++] = d; }
+                        acc[d] += lv.w[i];
+                    }
+                }
+                for (int j = 0; j < cnt; j++) { adj[k] = neigh[j]; w[k++] = acc[neigh[j]]; }
+                offsets[c + 1] = k;
+            }
+            return new Level(count, offsets, Arrays.copyOf(adj, k), Arrays.copyOf(w, k), self);
+        }
+
+        /** Relabels ids in order of first appearance. */
+        private static int[] renumber(int[] ids) {
+            int[] map = new int[ids.length], out = new int[ids.length];
+            Arrays.fill(map, -1);
+            int next = 0;
+            for (int v = 0; v < ids.length; v++) {
+                if (map[ids[v]] < 0) map[ids[v]] = next++;
+                out[v] = map[ids[v]];
+            }
+            return out;
+        }
+    }
+
+    static final class Workspace {
+        private final int[] dist, order;
+        private final double[] sigma, delta;
+
+        Workspace(int n) {
+            this.dist = new int[n];
+            this.order = new int[n];
+            this.sigma = new double[n];
+            this.delta = new double[n];
+            Arrays.fill(dist, -1);
+        }
+
+        /** Adds the dependencies of single source {@code s} to {@code bet}; returns the number of vertices reached. */
+        int accumulate(Graph g, int s, double[] bet) {
+            int[] offsets = g.offsets, adj = g.adj, adjEdge = g.adjEdge;
+            BitSet alive = g.alive;
+            int head = 0, tail = 0;
+            dist[s] = 0; sigma[s] = 1.0; order[tail++] = s;
+            while (head < tail) {
+                int v = order[head++];
+                for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                    if (!alive.get(adjEdge[i])) continue;
+                    int w = adj[i];
+                    if (dist[w] < 0) { dist[w] = dist[v] + 1; order[tail++] = w; }
+                    if (dist[w] == dist[v] + 1) sigma[w] += sigma[v];
+                }
+            }
+            for (int k = tail - 1; k > 0; k--) {
+                int w = order[k];
+                double coeff = (1.0 + delta[w]) / sigma[w];
+                for (int i = offsets[w]; i < offsets[w + 1]; i++) {
+                    int v = adj[i];
+                    if (dist[v] != dist[w] - 1 || !alive.get(adjEdge[i])) continue;
+                    double credit = sigma[v] * coeff;
+                    bet[adjEdge[i]] += credit;
+                    delta[v] += credit;
+                }
+            }
+            for (int k = 0; k < tail; k++) {
+                int v = order[k];
+                dist[v] = -1; sigma[v] = 0.0; delta[v] = 0.0;
+            }
+            return tail;
+        }
+    }
+
+    // Usage: GN_Simple_With_Modularity [--input <edge list or snapshot> [--header]] [--save-binary <file>] [--engine gn|louvain]
+    //        [--threads <n>] [--pivots <k> | --epsilon <e>] [--seed <s>] [--verify-top <k>] [--metrics]
+    public static void main(String[] args) throws IOException {
+        String engine = "gn";
+        boolean metrics = false, header = false;
+        Path input = null, saveBinary = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int pivots = IncrementalBetweenness.EXACT, verifyTop = 0;
+        double epsilon = 0;
+        long seed = 42;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--engine")) engine = args[++i];
+            else if (args[i].equals("--input")) input = Paths.get(args[++i]);
+            else if (args[i].equals("--header")) header = true;
+            else if (args[i].equals("--save-binary")) saveBinary = Paths.get(args[++i]);
+            else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--pivots")) pivots = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--epsilon")) epsilon = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+            else if (args[i].equals("--verify-top")) verifyTop = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--metrics")) metrics = true;
+            else throw new IllegalArgumentException("Unknown argument: " + args[i]);
+        }
 
-    public static void main(String[] args) {
         // --- Hard-coded graph edges ---
         String[][] edges = {
             {"A","B"}, {"A","C"}, {"A","D"},
@@ -15,224 +1052,192 @@ public class GN_Simple_With_Modularity {
             {"E","F"}, {"E","G"}, {"E","H"},
             {"F","G"}, {"G","H"}
         };
+        Graph g = input != null ? GraphFiles.load(input, header) : Graph.of(edges);
+        if (saveBinary != null) GraphFiles.writeBinary(g, saveBinary);
 
-        for (String[] e : edges) {
-            addEdge(e[0], e[1]);
-            originalEdges.add(new String[]{e[0], e[1]});
-        }
-
-        // Pre-calculate total edges (m) and degrees for the original graph
-        int m = originalEdges.size();
-        Map<String, Integer> degrees = new HashMap<>();
-        for (String[] e : originalEdges) {
-            degrees.put(e[0], degrees.getOrDefault(e[0], 0) + 1);
-            degrees.put(e[1], degrees.getOrDefault(e[1], 0) + 1);
-        }
-
-        // Build original adjacency (immutable for modularity calc)
-        Map<String, Set<String>> originalAdj = new HashMap<>();
-        for (String[] e : originalEdges) {
-            originalAdj.computeIfAbsent(e[0], k -> new HashSet<>()).add(e[1]);
-            originalAdj.computeIfAbsent(e[1], k -> new HashSet<>()).add(e[0]);
+        if (engine.equals("louvain")) {
+            runLouvain(g);
+            if (metrics) System.out.println("\nMetrics: " + Metrics.snapshot());
+            return;
+        } else if (!engine.equals("gn")) {
+            throw new IllegalArgumentException("Unknown engine: " + engine);
         }
 
         System.out.println("Initial Graph:");
-        printGraph();
+        printGraph(g, g.alive);
 
-        double peakQ = Double.NEGATIVE_INFINITY;
-        List<List<String>> peakCommunities = null;
-        Map<String, List<String>> peakGraphState = null;
+        if (epsilon > 0) pivots = IncrementalBetweenness.pivotsForError(epsilon, 0.1, g.m);
+        IncrementalBetweenness betweenness = new IncrementalBetweenness(g, new EdgeBetweenness(g, threads), pivots, seed);
+        if (!betweenness.isExact()) {
+            System.out.println("\nApproximate betweenness: " + pivots + " pivots per component (seed " + seed + ")"
+                + (verifyTop > 0 ? ", top " + verifyTop + " edges verified exactly" : ""));
+        }
+        Modularity modularity = new Modularity(g, betweenness.components());
+        RemovalLog log = new RemovalLog();
+        int peakStep = -1;
+        int[] toRemove = new int[g.m];
 
         int step = 1;
         while (true) {
-            Map<String, Double> bet = calcEdgeBetweenness();
-            if (bet.isEmpty()) break;
+            if (g.alive.isEmpty()) break;
+            long stepStart = Metrics.STEP.start();
+            double[] bet = betweenness.scores();
+            if (!betweenness.isExact() && verifyTop > 0) {
+                // Re-score the top estimated edges exactly and decide among those
+                int[] candidates = topEdges(g, bet, verifyTop);
+                bet = new double[g.m];
+                double[] exact = betweenness.exactScores(candidates, candidates.length);
+                for (int i = 0; i < candidates.length; i++) bet[candidates[i]] = exact[i];
+            }
 
-            double maxBetweenness = Collections.max(bet.values());
+            double maxBetweenness = 0.0;
+            for (int e = g.alive.nextSetBit(0); e >= 0; e = g.alive.nextSetBit(e + 1)) maxBetweenness = Math.max(maxBetweenness, bet[e]);
 
-            // Remove all edges with the highest betweenness
+            // Remove all edges with the highest betweenness (up to floating-point summation order)
             List<String> removed = new ArrayList<>();
-            for (Map.Entry<String, Double> entry : bet.entrySet()) {
-                if (Double.compare(entry.getValue(), maxBetweenness) == 0) {
-                    removeEdge(entry.getKey());
-                    removed.add(entry.getKey());
+            int removedCount = 0;
+            for (int e = g.alive.nextSetBit(0); e >= 0; e = g.alive.nextSetBit(e + 1)) {
+                if (maxBetweenness - bet[e] <= TIE_TOLERANCE * maxBetweenness) {
+                    toRemove[removedCount++] = e;
+                    removed.add(g.edgeName(e));
                 }
             }
+            betweenness.remove(toRemove, removedCount);
+            modularity.update(betweenness.components());
+            Metrics.STEP.stop(stepStart);
 
             System.out.println("\n==================== STEP " + step++ + " ====================");
             System.out.println("Removed edge(s) with max betweenness (" + String.format("%.2f", maxBetweenness) +"): " + removed);
-            printGraph();
+            printGraph(g, g.alive);
 
-            List<List<String>> communities = getCommunities();
-            System.out.println("Current Communities: " + communities);
+            List<int[]> communities = getCommunities(g, g.alive);
+            System.out.println("Current Communities: " + labelled(g, communities));
 
             // Individual modularities (using ORIGINAL adjacency)
             System.out.println("\n--- Individual Community Modularities ---");
-            Map<List<String>, Double> communityModularities = calcIndividualModularitiesUsingOriginal(communities, m, degrees, originalAdj);
-            for (Map.Entry<List<String>, Double> e : communityModularities.entrySet()) {
-                System.out.printf("  - Modularity of %s: %.4f%n", e.getKey(), e.getValue());
+            for (int[] c : communities) {
+                System.out.printf("  - Modularity of %s: %.4f%n", labelled(g, c), modularity.termOf(betweenness.components().comp[c[0]]));
             }
-            
+
             // Overall Q is just the sum of the individual modularities
-            double Q = communityModularities.values().stream().mapToDouble(Double::doubleValue).sum();
+            double Q = modularity.q();
             System.out.printf("\nOverall Modularity of Partitioning (Q): %.4f%n", Q);
 
-            if (Q > peakQ) {
-                peakQ = Q;
-                peakCommunities = deepCopyCommunities(communities);
-                peakGraphState = deepCopyGraph(g);
-            }
+            log.record(toRemove, removedCount, Q);
+            if (peakStep < 0 || Q > log.q(peakStep)) peakStep = log.steps() - 1;
 
             // Stop when no edges are left
-            boolean anyEdgesLeft = g.values().stream().anyMatch(list -> !list.isEmpty());
-            if (!anyEdgesLeft) {
+            if (g.alive.isEmpty()) {
                 System.out.println("\nAlgorithm finished: No more edges to remove.");
                 break;
             }
         }
 
         System.out.println("\n==================== PEAK MODULARITY ====================");
-        if (peakCommunities != null) {
-            System.out.printf("Peak Overall Modularity (Q): %.4f\n", peakQ);
-            System.out.println("Communities at peak: " + peakCommunities);
-            System.out.println("Graph snapshot (adjacency) at peak:");
-            List<String> nodes = new ArrayList<>(peakGraphState.keySet());
-            Collections.sort(nodes);
-            for (String n : nodes) {
-                System.out.println("  " + n + " -> " + peakGraphState.get(n));
-            }
+        if (peakStep >= 0) {
+            BitSet peakGraphState = log.aliveAfter(g, peakStep);
+            printPeak(g, log.q(peakStep), getCommunities(g, peakGraphState), peakGraphState);
         } else {
             System.out.println("No peak recorded.");
         }
+        if (metrics) System.out.println("\nMetrics: " + Metrics.snapshot());
     }
 
-    static Map<List<String>, Double> calcIndividualModularitiesUsingOriginal(List<List<String>> comms, int m, Map<String, Integer> deg, Map<String, Set<String>> originalAdj) {
-        Map<List<String>, Double> results = new HashMap<>();
-        if (m == 0) return results;
+    static void runLouvain(Graph g) {
+        Louvain louvain = new Louvain();
+        int[] community = louvain.run(g);
+        int count = 0;
+        for (int c : community) count = Math.max(count, c + 1);
 
-        for (List<String> c : comms) {
-            double communityQ = 0.0;
-            for (String i : c) {
-                for (String j : c) {
-                    boolean Aij = originalAdj.getOrDefault(i, Collections.emptySet()).contains(j);
-                    communityQ += (Aij ? 1.0 : 0.0) - (double)(deg.get(i) * deg.get(j)) / (2.0 * m);
-                }
-            }
-            results.put(new ArrayList<>(c), communityQ / (2.0 * m));
-        }
-        return results;
-    }
+        // Group vertices by community (both in id order) and keep only intra-community edges
+        List<int[]> communities = new ArrayList<>();
+        int[] sizes = new int[count];
+        for (int c : community) sizes[c]++;
+        for (int c = 0; c < count; c++) communities.add(new int[sizes[c]]);
+        Arrays.fill(sizes, 0);
+        for (int v = 0; v < g.n; v++) communities.get(community[v])[sizes[community[v]]++] = v;
+        BitSet intra = new BitSet(g.m);
+        for (int e = 0; e < g.m; e++) if (community[g.eu[e]] == community[g.ev[e]]) intra.set(e);
 
-    static void addEdge(String a, String b) {
-        g.computeIfAbsent(a, k -> new ArrayList<>()).add(b);
-        g.computeIfAbsent(b, k -> new ArrayList<>()).add(a);
+        System.out.println("Engine: Louvain (" + louvain.levels() + " aggregation level(s))");
+        System.out.println("\n==================== PEAK MODULARITY ====================");
+        printPeak(g, Modularity.of(g, community, count), communities, intra);
     }
 
-    static void removeEdge(String e) {
-        String[] x = e.split("-");
-        List<String> la = g.get(x[0]);
-        List<String> lb = g.get(x[1]);
-        if (la != null) la.remove(x[1]);
-        if (lb != null) lb.remove(x[0]);
+    static void printPeak(Graph g, double q, List<int[]> communities, BitSet alive) {
+        System.out.printf("Peak Overall Modularity (Q): %.4f\n", q);
+        System.out.println("Communities at peak: " + labelled(g, communities));
+        System.out.println("Graph snapshot (adjacency) at peak:");
+        printAdjacency(g, alive);
     }
 
-    static void printGraph() {
-        System.out.println("\nCurrent Graph State:");
-        List<String> sortedNodes = new ArrayList<>(g.keySet());
-        Collections.sort(sortedNodes);
-        for (String node : sortedNodes) {
-            System.out.println("  " + node + " -> " + g.get(node));
-        }
-    }
-
-    static Map<String, Double> calcEdgeBetweenness() {
-        Map<String, Double> betweenness = new HashMap<>();
-        List<String> nodes = new ArrayList<>(g.keySet());
-
-        for (String s : nodes) {
-            Map<String, List<String>> parents = new HashMap<>();
-            Map<String, Integer> dist = new HashMap<>();
-            Map<String, Double> paths = new HashMap<>();
-            Stack<String> stack = new Stack<>();
-            Queue<String> q = new LinkedList<>();
-
-            for (String node : nodes) {
-                dist.put(node, -1);
-                paths.put(node, 0.0);
-            }
-
-            dist.put(s, 0);
-            paths.put(s, 1.0);
-            q.add(s);
-            
-            while (!q.isEmpty()) {
-                String v = q.poll();
-                stack.push(v);
-                
-                for (String w : g.getOrDefault(v, Collections.emptyList())) {
-                    if (dist.get(w) < 0) {
-                        q.add(w);
-                        dist.put(w, dist.get(v) + 1);
-                    }
-                    if (dist.get(w) == dist.get(v) + 1) {
-                        paths.put(w, paths.get(w) + paths.get(v));
-                        parents.computeIfAbsent(w, k -> new ArrayList<>()).add(v);
-                    }
-                }
-            }
-
-            Map<String, Double> dependency = new HashMap<>();
-            while (!stack.isEmpty()) {
-                String w = stack.pop();
-                if (s.equals(w)) continue;
+    static final double TIE_TOLERANCE = 1e-9;
 
-                for (String v : parents.getOrDefault(w, Collections.emptyList())) {
-                    double credit = (paths.get(v) / paths.get(w)) * (1.0 + dependency.getOrDefault(w, 0.0));
-                    String edge = v.compareTo(w) < 0 ? v + "-" + w : w + "-" + v;
-                    betweenness.put(edge, betweenness.getOrDefault(edge, 0.0) + credit);
-                    dependency.put(v, dependency.getOrDefault(v, 0.0) + credit);
-                }
-            }
+    /** The k alive edges with the highest scores, in edge order. */
+    static int[] topEdges(Graph g, double[] bet, int k) {
+        k = Math.min(k, g.alive.cardinality());
+        int[] top = new int[k];
+        int size = 0;
+        for (int e = g.alive.nextSetBit(0); e >= 0; e = g.alive.nextSetBit(e + 1)) {
+            if (size == k && bet[e] <= bet[top[size - 1]]) continue;
+            int i = size < k ? size++ : size - 1;
+            while (i > 0 && bet[top[i - 1]] < bet[e]) { top[i] = top[i - 1]; i--; }
+            top[i] = e;
         }
+        Arrays.sort(top);
+        return top;
+    }
 
-        betweenness.replaceAll((k, v) -> v / 2.0);
-        return betweenness;
+    static void printGraph(Graph g, BitSet alive) {
+        System.out.println("\nCurrent Graph State:");
+        printAdjacency(g, alive);
     }
 
-    static List<List<String>> getCommunities() {
-        Set<String> visited = new HashSet<>();
-        List<List<String>> communities = new ArrayList<>();
-        for (String node : g.keySet()) {
-            if (!visited.contains(node)) {
-                List<String> component = new ArrayList<>();
-                dfs(node, visited, component);
-                if (!component.isEmpty()) communities.add(component);
+    static void printAdjacency(Graph g, BitSet alive) {
+        for (int v : g.sortedVertices()) {
+            List<String> nbrs = new ArrayList<>();
+            for (int i = g.offsets[v]; i < g.offsets[v + 1]; i++) {
+                if (alive.get(g.adjEdge[i])) nbrs.add(g.labels[g.adj[i]]);
             }
+            System.out.println("  " + g.labels[v] + " -> " + nbrs);
         }
-        return communities;
     }
 
-    static void dfs(String node, Set<String> visited, List<String> component) {
-        visited.add(node);
-        component.add(node);
-        for (String neighbor : g.getOrDefault(node, Collections.emptyList())) {
-            if (!visited.contains(neighbor)) {
-                dfs(neighbor, visited, component);
+    /** Connected components of the given alive edges, vertices in recursive-DFS preorder. */
+    static List<int[]> getCommunities(Graph g, BitSet alive) {
+        boolean[] visited = new boolean[g.n];
+        List<int[]> communities = new ArrayList<>();
+        int[] stack = new int[g.n], cursor = new int[g.n], component = new int[g.n];
+        for (int root = 0; root < g.n; root++) {
+            if (visited[root]) continue;
+            // Iterative DFS that visits vertices in the same preorder as the recursive version
+            int size = 0, sp = 0;
+            stack[sp++] = root; cursor[root] = g.offsets[root];
+            visited[root] = true; component[size++] = root;
+            while (sp > 0) {
+                int v = stack[sp - 1];
+                if (cursor[v] == g.offsets[v + 1]) { sp--; continue; }
+                int i = cursor[v]++;
+                int w = g.adj[i];
+                if (!alive.get(g.adjEdge[i]) || visited[w]) continue;
+                visited[w] = true; component[size++] = w;
+                cursor[w] = g.offsets[w];
+                stack[sp++] = w;
             }
+            communities.add(Arrays.copyOf(component, size));
         }
+        return communities;
     }
 
-    static List<List<String>> deepCopyCommunities(List<List<String>> comms) {
-        List<List<String>> copy = new ArrayList<>();
-        for (List<String> c : comms) copy.add(new ArrayList<>(c));
-        return copy;
+    static List<String> labelled(Graph g, int[] vertices) {
+        List<String> out = new ArrayList<>(vertices.length);
+        for (int v : vertices) out.add(g.labels[v]);
+        return out;
     }
 
-    static Map<String, List<String>> deepCopyGraph(Map<String, List<String>> graph) {
-        Map<String, List<String>> cp = new HashMap<>();
-        for (Map.Entry<String, List<String>> e : graph.entrySet()) {
-            cp.put(e.getKey(), new ArrayList<>(e.getValue()));
-        }
-        return cp;
+    static List<List<String>> labelled(Graph g, List<int[]> communities) {
+        List<List<String>> out = new ArrayList<>(communities.size());
+        for (int[] c : communities) out.add(labelled(g, c));
+        return out;
     }
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package practicals;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Sliding-window bit counting: ingest throughput per bit (single and word-at-a-time) and query
+ * latency versus window size and buckets kept per size. Query cost grows with the bucket count,
+ * about maxBucketsPerSize * log2(windowSize), which {@link #bucketCount} reports alongside.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DgimBenchmark {
+    static final int STREAM = 1 << 22;
+
+    @Param({"1000", "1000000", "100000000"})
+    int windowSize;
+
+    @Param({"2", "8"})
+    int maxBucketsPerSize;
+
+    @Param({"0.5"})
+    double density;
+
+    long[] words;
+    int[] bits;
+    DGIMMadhur.DGIM filled;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        words = SyntheticData.bits(STREAM, density, SyntheticData.SEED);
+        bits = new int[STREAM];
+        for (int i = 0; i < STREAM; i++) bits[i] = (int) (words[i >>> 6] >>> (i & 63)) & 1;
+        filled = new DGIMMadhur.DGIM(windowSize, maxBucketsPerSize, false);
+        // Fill past the window when it fits in the stream so expiry is exercised too
+        for (int pass = 0; pass < 1 + windowSize / STREAM; pass++) filled.addBits(words, STREAM);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM)
+    public DGIMMadhur.DGIM addBit() {
+        DGIMMadhur.DGIM d = new DGIMMadhur.DGIM(windowSize, maxBucketsPerSize, false);
+        for (int b : bits) d.addBit(b);
+        return d;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM)
+    public DGIMMadhur.DGIM addBits() {
+        DGIMMadhur.DGIM d = new DGIMMadhur.DGIM(windowSize, maxBucketsPerSize, false);
+        d.addBits(words, STREAM);
+        return d;
+    }
+
+    @Benchmark
+    public DGIMMadhur.Count countWindow() {
+        return filled.count();
+    }
+
+    @Benchmark
+    public void countPrefixes(Blackhole bh) {
+        for (int k = windowSize; k > 0; k >>>= 1) bh.consume(filled.count(k));
+    }
+
+    @Benchmark
+    public int bucketCount() {
+        return filled.bucketCount();
+    }
+}
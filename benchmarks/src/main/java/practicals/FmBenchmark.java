@@ -0,0 +1,75 @@
+package practicals;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Distinct-count sketches: ingest throughput per value and estimate latency versus stream cardinality. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FmBenchmark {
+    static final int STREAM = 1 << 20;
+
+    @Param({"1000", "100000", "10000000"})
+    int cardinality;
+
+    @Param({"14"})
+    int precision;
+
+    @Param({"64"})
+    int hashes;
+
+    int[] values;
+    FM_Madhur.HyperLogLog filledHll;
+    FM_Madhur.FlajoletMartin filledFm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        values = SyntheticData.values(STREAM, cardinality, SyntheticData.SEED);
+        filledHll = new FM_Madhur.HyperLogLog(precision);
+        filledHll.addAll(values, 0, values.length);
+        filledFm = new FM_Madhur.FlajoletMartin(hashes, 8, 1);
+        filledFm.addAll(values, 0, values.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM)
+    public FM_Madhur.HyperLogLog hllIngest() {
+        FM_Madhur.HyperLogLog hll = new FM_Madhur.HyperLogLog(precision);
+        hll.addAll(values, 0, values.length);
+        return hll;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM)
+    public FM_Madhur.HyperLogLog hllIngestParallel() {
+        return FM_Madhur.HyperLogLog.ingestParallel(values, precision, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM)
+    public FM_Madhur.FlajoletMartin fmIngest() {
+        FM_Madhur.FlajoletMartin fm = new FM_Madhur.FlajoletMartin(hashes, 8, 1);
+        fm.addAll(values, 0, values.length);
+        return fm;
+    }
+
+    @Benchmark
+    public double hllEstimate() {
+        return filledHll.estimate();
+    }
+
+    @Benchmark
+    public double fmEstimate() {
+        return filledFm.estimate();
+    }
+
+    @Benchmark
+    public FM_Madhur.HyperLogLog hllMerge() {
+        return new FM_Madhur.HyperLogLog(precision).merge(filledHll);
+    }
+}
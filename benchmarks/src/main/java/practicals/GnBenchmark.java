@@ -0,0 +1,84 @@
+package practicals;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Community detection versus graph size on seeded planted-partition graphs: full Brandes
+ * betweenness, one Girvan-Newman step (remove the top edges, rescore the touched components,
+ * update Q), modularity scoring of a partition, and a complete Louvain run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GnBenchmark {
+    @Param({"200", "1000", "5000"})
+    int vertices;
+
+    @Param({"8"})
+    double avgDegree;
+
+    @Param({"1"})
+    int threads;
+
+    GN_Simple_With_Modularity.Graph g;
+    GN_Simple_With_Modularity.EdgeBetweenness engine;
+    int[] partition;
+    int communities;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        g = SyntheticData.plantedPartition(vertices, Math.max(2, vertices / 50), avgDegree, 0.1, SyntheticData.SEED);
+        engine = new GN_Simple_With_Modularity.EdgeBetweenness(g, threads);
+        partition = new GN_Simple_With_Modularity.Louvain().run(g);
+        for (int c : partition) communities = Math.max(communities, c + 1);
+    }
+
+    /** Every step starts from the intact graph with fresh exact scores, outside the measurement. */
+    @State(Scope.Thread)
+    public static class StepState {
+        GN_Simple_With_Modularity.IncrementalBetweenness betweenness;
+        GN_Simple_With_Modularity.Modularity modularity;
+        int[] toRemove;
+
+        @Setup(Level.Invocation)
+        public void reset(GnBenchmark b) {
+            b.g.alive.set(0, b.g.m);
+            betweenness = new GN_Simple_With_Modularity.IncrementalBetweenness(b.g, b.engine);
+            modularity = new GN_Simple_With_Modularity.Modularity(b.g, betweenness.components());
+            if (toRemove == null) toRemove = new int[b.g.m];
+        }
+    }
+
+    @Benchmark
+    public double[] betweennessFull() {
+        return engine.compute();
+    }
+
+    @Benchmark
+    public double gnStep(StepState st) {
+        double[] bet = st.betweenness.scores();
+        double max = 0.0;
+        for (int e = 0; e < g.m; e++) max = Math.max(max, bet[e]);
+        int count = 0;
+        for (int e = 0; e < g.m; e++) {
+            if (max - bet[e] <= GN_Simple_With_Modularity.TIE_TOLERANCE * max) st.toRemove[count++] = e;
+        }
+        st.betweenness.remove(st.toRemove, count);
+        st.modularity.update(st.betweenness.components());
+        return st.modularity.q();
+    }
+
+    @Benchmark
+    public double modularityOfPartition() {
+        return GN_Simple_With_Modularity.Modularity.of(g, partition, communities);
+    }
+
+    @Benchmark
+    public int[] louvain() {
+        return new GN_Simple_With_Modularity.Louvain().run(g);
+    }
+}
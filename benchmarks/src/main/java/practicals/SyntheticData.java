@@ -0,0 +1,51 @@
+package practicals;
+
+import java.util.SplittableRandom;
+
+/** Seeded input generators, so every benchmark run sees byte-identical data. */
+final class SyntheticData {
+    static final long SEED = 20240101L;
+
+    private SyntheticData() {}
+
+    /** {@code count} ints drawn uniformly from [0, cardinality); about min(count, cardinality) distinct. */
+    static int[] values(int count, int cardinality, long seed) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        int[] out = new int[count];
+        for (int i = 0; i < count; i++) out[i] = rnd.nextInt(cardinality);
+        return out;
+    }
+
+    /** {@code nbits} independent bits packed LSB first, each set with probability {@code density}. */
+    static long[] bits(int nbits, double density, long seed) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        long[] words = new long[(nbits + 63) >>> 6];
+        for (int i = 0; i < nbits; i++) if (rnd.nextDouble() < density) words[i >>> 6] |= 1L << (i & 63);
+        return words;
+    }
+
+    /**
+     * Planted partition graph: n vertices in {@code communities} equal blocks, about
+     * {@code avgDegree * n / 2} edges of which a fraction {@code mixing} cross blocks. A ring
+     * through all vertices keeps the graph connected.
+     */
+    static GN_Simple_With_Modularity.Graph plantedPartition(int n, int communities, double avgDegree, double mixing, long seed) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        GN_Simple_With_Modularity.EdgeListBuilder b = new GN_Simple_With_Modularity.EdgeListBuilder();
+        for (int v = 0; v < n; v++) b.intern("v" + v);
+        for (int v = 0; v < n; v++) b.addEdge(v, (v + 1) % n, 1.0, false);
+        int block = Math.max(1, n / communities);
+        long target = (long) (avgDegree * n / 2);
+        for (long e = n; e < target; e++) {
+            int u = rnd.nextInt(n), v;
+            if (rnd.nextDouble() < mixing) {
+                v = rnd.nextInt(n);
+            } else {
+                int start = Math.min(u / block * block, n - 1);
+                v = start + rnd.nextInt(Math.min(block, n - start));
+            }
+            b.addEdge(u, v, 1.0, false);
+        }
+        return b.build();
+    }
+}